@@ -0,0 +1,115 @@
+package com.solace.aaron.restQ;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A long-running admin operation (export, import) that runs in the background, since it won't fit inside one
+ * REST request/reply.  The request gets back a jobId, and GET /restQ/job/&lt;jobId&gt; reports on it.
+ */
+abstract class AdminJob implements Runnable {
+
+    static final String JOB_DIR = "restQ-files";            // all export/import files live under here, relative to the working dir
+    static final int PROGRESS_LOG_INTERVAL_MS = 5000;
+
+    enum State { RUNNING, DONE, FAILED, }
+
+    private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
+
+    final String jobId;
+    final String queueName;
+    final Path file;
+    protected final AtomicLong messages = new AtomicLong();
+    protected final AtomicLong bytes = new AtomicLong();
+    private final long startMs = System.currentTimeMillis();
+    private volatile long endMs = 0;
+    private volatile long lastProgressLogMs = startMs;
+    private volatile State state = State.RUNNING;
+    private volatile String error = null;
+
+    AdminJob(String jobId, String queueName, Path file) {
+        this.jobId = jobId;
+        this.queueName = queueName;
+        this.file = file;
+    }
+
+    /** what kind of job this is, for the status */
+    abstract String getKind();
+
+    /** do the work; throw if it didn't work out */
+    protected abstract void execute() throws Exception;
+
+    @Override
+    public final void run() {
+        logger.info("Starting {}", this);
+        try {
+            execute();
+            state = State.DONE;
+        } catch (Exception e) {
+            error = e.toString();
+            state = State.FAILED;
+            logger.error("Job {} failed", jobId, e);
+        } finally {
+            endMs = System.currentTimeMillis();
+            logger.info("Finished {}", this);
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /** call as often as you like, it only logs every so often */
+    protected void logProgress() {
+        long now = System.currentTimeMillis();
+        if (now - lastProgressLogMs >= PROGRESS_LOG_INTERVAL_MS) {
+            lastProgressLogMs = now;
+            logger.info("Progress {}", this);
+        }
+    }
+
+    JsonObject toJson() {
+        final long elapsedMs = Math.max(1, (endMs > 0 ? endMs : System.currentTimeMillis()) - startMs);
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        job.add("jobId", jobId);
+        job.add("kind", getKind());
+        job.add("queue", queueName);
+        job.add("file", file.toString());
+        job.add("state", state.toString());
+        job.add("messages", messages.get());
+        job.add("bytes", bytes.get());
+        job.add("elapsedMs", elapsedMs);
+        job.add("msgsPerSec", messages.get() * 1000 / elapsedMs);
+        job.add("bytesPerSec", bytes.get() * 1000 / elapsedMs);
+        if (error != null) job.add("error", error);
+        return job.build();
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    /** a plain file name under JOB_DIR; no absolute paths or .. escapes */
+    static Path resolveJobFile(String name) throws IllegalArgumentException {
+        return resolveJobFile(Paths.get(JOB_DIR), name);
+    }
+
+    static Path resolveJobFile(Path jobDir, String name) throws IllegalArgumentException {
+        try {
+            Path dir = jobDir.toAbsolutePath().normalize();
+            Path file = dir.resolve(name).normalize();
+            if (name.isEmpty() || Paths.get(name).isAbsolute() || !file.getParent().equals(dir)) throw new IllegalArgumentException();
+            return file;
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a request gets in at all, before any real work is done on it: one token bucket per flowId and
+ * one per REST client username (from the Basic auth header the gateway passes through), so one client hammering
+ * an empty queue can't crowd out everyone else, plus a cap on how many requests are being handled at once.
+ * Turning a request away is meant to be cheap: a map lookup and a couple of arithmetic ops.
+ */
+final class AdmissionControl {
+
+    // the rates, bursts and concurrency cap are in RestQProps, and can all be changed on the fly
+    static final long IDLE_BUCKET_EVICT_MS = 300_000; // buckets not used in this long are forgotten (they'd be full again anyway)
+    static final String AUTHORIZATION_HEADER = "JMS_Solace_HTTP_field_Authorization";
+
+    private final Map<String,TokenBucket> flowBuckets = new ConcurrentHashMap<>();
+    private final Map<String,TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private volatile int maxConcurrentRequests = RestQProps.getInt(Props.MAX_CONCURRENT_REQUESTS);
+    private final ResizableSemaphore inFlight = new ResizableSemaphore(maxConcurrentRequests);
+
+    AdmissionControl() {
+        FlowManager.pool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, IDLE_BUCKET_EVICT_MS, IDLE_BUCKET_EVICT_MS, TimeUnit.MILLISECONDS);
+        RestQProps.addReloadListener(new Runnable() {
+            @Override
+            public void run() {
+                setMaxConcurrentRequests(RestQProps.getInt(Props.MAX_CONCURRENT_REQUESTS));
+            }
+        });
+    }
+
+    /** just to get at reducePermits(), which is how you shrink one without waiting for its permits to come back */
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /** the classic: refills continuously at rate/sec, up to burst; those are passed in each time, so they can change */
+    static final class TokenBucket {
+        private double tokens;
+        private long lastNanos;
+        private volatile long lastUsedMs = System.currentTimeMillis();
+
+        TokenBucket(int burst, long nowNanos) {
+            this.tokens = burst;
+            this.lastNanos = nowNanos;
+        }
+
+        /** 0 if there was a token, otherwise roughly how many ms until there is one */
+        synchronized long tryTake(long nowNanos, int ratePerSec, int burst) {
+            if (ratePerSec <= 0) return 0;  // 0 turns the limit off
+            final double ratePerNano = ratePerSec / 1e9;
+            lastUsedMs = System.currentTimeMillis();
+            tokens = Math.min(burst, tokens + (nowNanos - lastNanos) * ratePerNano);
+            lastNanos = nowNanos;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long)Math.ceil((1 - tokens) / ratePerNano / 1e6);
+        }
+    }
+
+    /**
+     * Takes a token from each bucket that applies (flowId and/or username, either can be null); 0 if the request
+     * can go ahead, otherwise ms until it could.  A request turned away by the user bucket still spent its flow token,
+     * which is fine, it's the same client either way.
+     */
+    long admit(String flowId, String username) {
+        return admit(flowId, username, System.nanoTime());
+    }
+
+    long admit(String flowId, String username, long now) {
+        long waitMs = 0;
+        if (flowId != null) {
+            final int burst = Math.max(1, RestQProps.getInt(Props.FLOW_BURST));
+            waitMs = bucket(flowBuckets, flowId, burst, now).tryTake(now, RestQProps.getInt(Props.FLOW_RATE_PER_SEC), burst);
+        }
+        if (waitMs == 0 && username != null) {
+            final int burst = Math.max(1, RestQProps.getInt(Props.USER_BURST));
+            waitMs = bucket(userBuckets, username, burst, now).tryTake(now, RestQProps.getInt(Props.USER_RATE_PER_SEC), burst);
+        }
+        return waitMs;
+    }
+
+    private static TokenBucket bucket(Map<String,TokenBucket> buckets, String key, int burst, long nowNanos) {
+        TokenBucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new TokenBucket(burst, nowNanos));
+    }
+
+    /** false if we're already handling as many as we're willing to; otherwise call exit() when done */
+    boolean tryEnter() {
+        return inFlight.tryAcquire();
+    }
+
+    void exit() {
+        inFlight.release();
+    }
+
+    int getInFlight() {
+        return maxConcurrentRequests - inFlight.availablePermits();
+    }
+
+    /**
+     * Bigger lets waiting requests in straight away; smaller doesn't touch the requests already in, it just
+     * takes the permits back as they exit (availablePermits() goes negative until then).
+     */
+    synchronized void setMaxConcurrentRequests(int max) {
+        final int delta = max - maxConcurrentRequests;
+        if (delta > 0) inFlight.release(delta);
+        else if (delta < 0) inFlight.reducePermits(-delta);
+        maxConcurrentRequests = max;
+    }
+
+    /** the Retry-After header for a 429: whole seconds, and at least 1 */
+    static String retryAfterSec(long waitMs) {
+        return Long.toString(Math.max(1, (waitMs + 999) / 1000));
+    }
+
+    /** forget the buckets nobody's used for a while; called now and then by the timer */
+    void evictIdle() {
+        final long cutoff = System.currentTimeMillis() - IDLE_BUCKET_EVICT_MS;
+        for (Map<String,TokenBucket> buckets : Arrays.asList(flowBuckets, userBuckets)) {
+            for (Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext(); ) {
+                if (it.next().lastUsedMs < cutoff) it.remove();
+            }
+        }
+    }
+
+    /** the username out of a Basic Authorization header, or null if there isn't one */
+    static String getUsername(BytesXMLMessage request) {
+        try {
+            SDTMap props = request.getProperties();
+            if (props == null || !props.containsKey(AUTHORIZATION_HEADER)) return null;
+            String auth = props.getString(AUTHORIZATION_HEADER);
+            if (auth == null || !auth.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+            String decoded = new String(Base64.getDecoder().decode(auth.substring(6).trim()), StandardCharsets.UTF_8);
+            int colon = decoded.indexOf(':');
+            return colon < 0 ? decoded : decoded.substring(0, colon);
+        } catch (SDTException | IllegalArgumentException e) {  // garbage, the gateway would have rejected it anyway
+            return null;
+        }
+    }
+}
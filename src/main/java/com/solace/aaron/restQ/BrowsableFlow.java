@@ -0,0 +1,18 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.JCSMPException;
+import java.util.List;
+
+/** a browser flow: messages are looked at, a page at a time if need be, and maybe deleted, but never ACKed */
+public interface BrowsableFlow extends Flow {
+
+    /**
+     * Up to limit messages following the one with seq afterSeq, as many as are there (maybe none), or null if the
+     * flow is still recovering.  Anything after afterSeq that was already handed out gets handed out again, so a
+     * retried page is the same page; afterSeq -1 means just carry on from where we are.
+     */
+    List<UnackedMessage> getNextMessages(long afterSeq, int limit) throws JCSMPException;
+
+    /** browse-and-delete: take this browsed message off the queue for good; false if we aren't holding it */
+    boolean removeMessage(String msgId) throws JCSMPException;
+}
@@ -1,31 +1,36 @@
 package com.solace.aaron.restQ;
 
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.jcsmp.Browser;
 import com.solacesystems.jcsmp.BrowserProperties;
 import com.solacesystems.jcsmp.BytesXMLMessage;
 import com.solacesystems.jcsmp.ClosedFacilityException;
+import com.solacesystems.jcsmp.FlowEvent;
+import com.solacesystems.jcsmp.FlowEventArgs;
+import com.solacesystems.jcsmp.FlowEventHandler;
 import com.solacesystems.jcsmp.JCSMPErrorResponseException;
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPFactory;
 import com.solacesystems.jcsmp.JCSMPSession;
 import com.solacesystems.jcsmp.OperationNotSupportedException;
 import com.solacesystems.jcsmp.Queue;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 class BrowserFlowManager implements FlowManager {
 
 
-    private Map<String,String> queueToFlowIdMap = new HashMap<>();
-    private Map<String,String> flowIdToQueueMap = new HashMap<>();
-    private Map<String,BrowserFlow> queueToFlowMap = new HashMap<>();
-    private Map<String,BrowserFlow> flowIdToFlowMap = new HashMap<>();
+    private Map<String,Set<String>> queueToFlowIdsMap = new ConcurrentHashMap<>();  // queue -> all the flows bound to it, up to flow.maxPerQueue
+    // flowId -> flow is the shared FlowRegistry
 
     private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
     
@@ -33,29 +38,29 @@ class BrowserFlowManager implements FlowManager {
     // empty constructor!
     
     
-    public Flow connectToQueue(JCSMPSession session, RequestMessageObject rmo)
+    public BrowsableFlow connectToQueue(JCSMPSession session, RequestMessageObject rmo)
             throws OperationNotSupportedException, JCSMPErrorResponseException, JCSMPException {
         String queueName = rmo.resourceName;
+        final boolean readOnly = !rmo.requestMessage.getDestination().getName().startsWith("POST/restQ/browse/");  // POST to browse means read/delete
         // configure the queue API object locally
         final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueName);
         
         BrowserProperties br_prop = new BrowserProperties();
         br_prop.setEndpoint(queue);
-        br_prop.setTransportWindowSize(FlowManager.FLOW_TRANSPORT_WINDOW_SIZE);
-        br_prop.setWaitTimeout(FlowManager.FLOW_RECEIVE_MESSAGE_TIMEOUT_MS);
+        br_prop.setTransportWindowSize(RestQProps.getInt(Props.BROWSE_TRANSPORT_WINDOW_SIZE));  // 1..255, what JCSMP allows
+        br_prop.setWaitTimeout(RestQProps.getInt(Props.FLOW_RECEIVE_MESSAGE_TIMEOUT_MS));
         String selector = rmo.getParam("selector");  // might be null if not set
         if (selector != null) br_prop.setSelector(selector);
         System.out.printf("Attempting to browse to queue '%s' on the broker.%n", queueName);
-        Browser myBrowser;
+        final String flowId = registry.newFlowId();
+        boolean registered = false;
         try {
-            myBrowser = session.createBrowser(br_prop);
+            BrowserFlow flow = new BrowserFlow(queueName, flowId, session, br_prop, readOnly);
             System.out.println("SUCCESS!");
-            BrowserFlow flow = new BrowserFlow(queueName, rmo.uuid, myBrowser);
+            registry.register(flow);
+            registered = true;
             flow.restartTimer();
-            queueToFlowIdMap.put(queueName,flow.getFlowId());
-            flowIdToQueueMap.put(flow.getFlowId(), queueName);
-            queueToFlowMap.put(queueName, flow);
-            flowIdToFlowMap.put(flow.getFlowId(), flow);
+            queueToFlowIdsMap.computeIfAbsent(queueName, k -> ConcurrentHashMap.newKeySet()).add(flowId);
 //            return new ConsumerFlow(queueName, reqCorrId, flowQueueReceiver);
             return flow;
         } catch (OperationNotSupportedException e) {  // not allowed to do this
@@ -67,76 +72,129 @@ class BrowserFlowManager implements FlowManager {
         } catch (JCSMPException e) {
             logger.error("Nope, couldn't do that!",e);
             throw e;
+        } finally {
+            if (!registered) registry.release(flowId);
         }
     }
 
     @Override
     public void unbind(String queueName, String flowId) {
-        assert queueName.equals(flowIdToQueueMap.get(flowId));
-        assert flowId.equals(queueToFlowIdMap.get(queueName));
-        assert queueToFlowMap.get(queueName).equals(flowIdToFlowMap.get(flowId));
+        assert queueToFlowIdsMap.containsKey(queueName) && queueToFlowIdsMap.get(queueName).contains(flowId);
         
-        BrowserFlow flow = flowIdToFlowMap.get(flowId);
-        flow.browser.close();
-        queueToFlowIdMap.remove(queueName);  // get rid of queue-mapped objects
-        queueToFlowMap.remove(queueName);
-        // but leave the flowId-mapped objects just in case
+        BrowserFlow flow = (BrowserFlow)getFlowFromId(flowId);
+        assert flow != null && queueName.equals(flow.getQueueName());
+        flow.close();
+        Set<String> flowIds = queueToFlowIdsMap.get(queueName);  // get rid of queue-mapped objects
+        if (flowIds != null) {
+            flowIds.remove(flowId);
+            if (flowIds.isEmpty()) queueToFlowIdsMap.remove(queueName);
+        }
+        // but leave it in the registry just in case, its slot gets reused eventually
     }
 
     
 
     @Override
     public boolean doesQueueHaveBoundFlow(String queueName) {
-        System.out.println(">> queueToFlowIdMap.containsKey?  "+queueName+"  --> "+queueToFlowIdMap.containsKey(queueName));
-        System.out.println(">> queueToFlowMap.containsKey?  "+queueName+"  --> "+queueToFlowMap.containsKey(queueName));
-        return queueToFlowIdMap.containsKey(queueName);
+        return getBoundFlowCount(queueName) > 0;
+    }
+
+    @Override
+    public int getBoundFlowCount(String queueName) {
+        Set<String> flowIds = queueToFlowIdsMap.get(queueName);
+        if (flowIds == null) return 0;
+        flowIds.removeIf(flowId -> {  // timed out or gave up recovering, doesn't count any more
+            Flow flow = registry.lookup(flowId);
+            return flow == null || flow.isClosed();
+        });
+        return flowIds.size();
     }
 
     @Override
     public boolean doesFlowExist(String flowId) {
-        System.out.println(">> flowIdToFlowMap.containsKey?  "+flowId+"  --> "+flowIdToFlowMap.containsKey(flowId));
-        System.out.println(">> flowIdToQueueMap.containsKey?  "+flowId+"  --> "+flowIdToQueueMap.containsKey(flowId));
-        return flowIdToFlowMap.containsKey(flowId);
+        Flow flow = getFlowFromId(flowId);
+        return flow != null && !flow.isClosed();
     }
 
     
     @Override
-    public String getFlowIdForQueue(String queueName) {
-        return queueToFlowIdMap.get(queueName);
+    public Set<String> getFlowIdsForQueue(String queueName) {
+        Set<String> flowIds = queueToFlowIdsMap.get(queueName);
+        return flowIds == null ? Collections.emptySet() : Collections.unmodifiableSet(flowIds);
     }
     
     @Override
-    public Flow getFlowFromId(String flowId) {
-        return flowIdToFlowMap.get(flowId);
+    public BrowsableFlow getFlowFromId(String flowId) {
+        Flow flow = registry.lookup(flowId);
+        return flow instanceof BrowserFlow ? (BrowserFlow)flow : null;  // not a consumer flow
+    }
+    
+    private List<BrowserFlow> getFlows() {
+        List<BrowserFlow> flows = new ArrayList<>();
+        for (Flow flow : registry.getFlows()) {
+            if (flow instanceof BrowserFlow) flows.add((BrowserFlow)flow);
+        }
+        return flows;
     }
 
     /**
-     * For every FlowReceiver, initiate close()
+     * For every FlowReceiver, initiate close(), all at once
      */
     @Override
     public void shutdown() {
-        for (BrowserFlow flow : flowIdToFlowMap.values()) {
-            flow.browser.close();
+        FlowManager.closeAll(getFlows());
+    }
+
+    /**
+     * The browser flows get re-bound by JCSMP after a Session reconnect, but whatever we've
+     * already browsed can't be trusted any more (and can't be removed), so drop it.
+     */
+    @Override
+    public void onSessionReconnected() {
+        for (BrowserFlow flow : getFlows()) {
+            flow.invalidateUnacked();
         }
     }
     
     /////////////////////////////////////////////////
     // INNER CLASS
 
-    private class BrowserFlow implements Flow {
+    private class BrowserFlow extends RecoverableFlow implements BrowsableFlow {
         
         private final String queueName;             // obvious
-        private final String flowId;                                   // the auto-gen flowId, derived from original MicroGateway request correlationid
-        private final String magicKey = UUID.randomUUID().toString();  // needed to close the flow
-        private final Browser browser;                 // the JCSMP flow receiver to receive messages on
-        private final Map<String,BytesXMLMessage> unackedMessages = new HashMap<>();  // corrID -> message
+        private final String flowId;                                // from the FlowRegistry
+        private final String magicKey = FlowRegistry.newMagicKey();  // needed to close the flow
+        private final JCSMPSession session;                      // needed to re-create the browser during recovery
+        private final BrowserProperties browserProps;            // ditto
+        private volatile Browser browser;                        // the JCSMP browser to receive messages on, replaced during recovery
+        private final UnackedIndex unackedMessages = new UnackedIndex();  // by seq, oldest first, the last browse.retainedWindow of them
+        private volatile long droppedUpTo = 0;                            // everything up to this seq isn't held any more, so cursors before it are no good
         private ScheduledFuture<?> futureTask = null;       // timer for inactivity
-        private boolean readOnlyBrowser = true;
+        private final boolean readOnlyBrowser;              // unless it was a POST, can't delete anything
+        private final ReentrantLock browseLock = new ReentrantLock();  // one browse at a time; not synchronized, getNext() blocks
 
-        private BrowserFlow(String queueName, String flowId, Browser browser) {
+        private BrowserFlow(String queueName, String flowId, JCSMPSession session, BrowserProperties browserProps, boolean readOnly) throws JCSMPException {
             this.queueName = queueName;
             this.flowId = flowId;
-            this.browser = browser;
+            this.session = session;
+            this.browserProps = browserProps;
+            this.readOnlyBrowser = readOnly;
+            this.browser = createBrowser();
+        }
+
+        private Browser createBrowser() throws JCSMPException {
+            // the event source is the browser's internal FlowReceiver, not the Browser, so remember which one this is for
+            final Browser[] owner = new Browser[1];
+            owner[0] = session.createBrowser(browserProps, new FlowEventHandler() {
+                @Override
+                public void handleEvent(Object source, FlowEventArgs event) {
+                    System.out.printf("### Browser flow event for '%s': %s%n",queueName,event);
+                    if (event.getEvent() == FlowEvent.FLOW_DOWN && owner[0] == browser) {  // same as the consumer: ignore a stale browser we've already replaced
+                        onFlowDown();
+                    }
+                }
+            });
+            return owner[0];
         }
 
         @Override
@@ -153,30 +211,73 @@ class BrowserFlowManager implements FlowManager {
             return magicKey;
         }
         
-        
-        private void restartTimer() {
+        private synchronized void restartTimer() {  // request threads and the timer thread both get here
             if (futureTask != null) {
                 futureTask.cancel(true);
             }
-            futureTask = pool.schedule(new FlowInactivityTimeoutTimer(this), FLOW_INACTIVITY_TIMEOUT_SEC, TimeUnit.SECONDS);
+            futureTask = pool.schedule(new FlowInactivityTimeoutTimer(this), RestQProps.getInt(Props.FLOW_INACTIVITY_TIMEOUT_SEC), TimeUnit.SECONDS);
         }
 
         @Override
-        public void close() {
+        void closeUnderlying() {
             browser.close();
         }
         
+        /** note that a re-created browser starts again from the front of the queue */
+        @Override
+        void reopen() throws JCSMPException {
+            browser.close();
+            browser = createBrowser();
+        }
 
         @Override
-        public BytesXMLMessage getNextMessage(String newMsgId) throws JCSMPException {
-            // this next line should be impossible if using MicroGateway, each corrId is randomized
-            if (unackedMessages.containsKey(newMsgId)) throw new AssertionError("correlation-id already exists!?");
+        public void invalidateUnacked() {
+            droppedUpTo = unackedMessages.getLastSeq();
+            unackedMessages.clear();
+        }
+        
+
+        @Override
+        public UnackedMessage getNextMessage() throws JCSMPException {
             restartTimer();
+            if (!awaitRecovery()) return null;  // still recovering, caller can check isRecovering()
+            browseLock.lock();
+            try {
+                return browseNext();
+            } finally {
+                browseLock.unlock();
+            }
+        }
+        
+        @Override
+        public List<UnackedMessage> getNextMessages(long afterSeq, int limit) throws JCSMPException {  // one page at a time
+            restartTimer();
+            if (!awaitRecovery()) return null;  // still recovering, caller can check isRecovering()
+            browseLock.lock();
+            try {
+                if (afterSeq >= 0 && afterSeq < droppedUpTo) throw new IllegalStateException("cursor has expired");
+                List<UnackedMessage> page = afterSeq >= 0 ? unackedMessages.list(afterSeq, limit) : new ArrayList<>();
+                while (page.size() < limit) {
+                    UnackedMessage browsed = browseNext();
+                    if (browsed == null) break;  // that's all for now, already waited once
+                    page.add(browsed);
+                }
+                return page;
+            } finally {
+                browseLock.unlock();
+            }
+        }
+        
+        private UnackedMessage browseNext() throws JCSMPException {
             try {
                 BytesXMLMessage msg = browser.getNext();
-                if (msg != null) unackedMessages.put(newMsgId, msg);  // track this message for ACKing later
+                if (msg == null) return null;
+                UnackedMessage browsed = unackedMessages.add(msg, queueName);  // track this message for getMsg later
+                if (unackedMessages.size() > RestQProps.getInt(Props.BROWSE_RETAINED_WINDOW)) {  // don't hang onto the whole queue
+                    droppedUpTo = unackedMessages.removeOldest().seq;
+                }
                 logger.debug(unackedMessages.toString());
-                return msg;
+                return browsed;
             } catch (ClosedFacilityException e) {  // this Flow is shut!
                 e.printStackTrace();
                 throw e;
@@ -184,29 +285,54 @@ class BrowserFlowManager implements FlowManager {
         }
         
         @Override
-        public BytesXMLMessage getUnackedMessage(String msgId) {
-            assert unackedMessages.containsKey(msgId);
+        public UnackedMessage getUnackedMessage(String msgId) {
+            UnackedMessage browsed = unackedMessages.get(msgId);
+            assert browsed != null;
             restartTimer();
-            return unackedMessages.get(msgId);
+            return browsed;
         }
 
         
-//        @Override
-//        public void ackMessage(String msgId) throws IllegalStateException {
-//            assert unackedMessages.containsKey(msgId);
-//            unackedMessages.get(msgId).ackMessage();
-//        }
+        @Override
+        public boolean removeMessage(String msgId) throws JCSMPException {
+            if (readOnlyBrowser) throw new IllegalStateException("read-only browser");
+            restartTimer();
+            UnackedMessage browsed = unackedMessages.get(msgId);
+            if (browsed == null) return false;
+            browser.remove(browsed.msg);  // if this throws, we still hold it and it can be tried again
+            unackedMessages.remove(msgId);
+            return true;
+        }
+
+        @Override
+        public long getNextPollMs() {
+            return 0;  // a browser's empty until someone publishes more, no way of guessing when
+        }
+
+        @Override
+        public String getPushTopic() {
+            return null;  // browsing is always pulled
+        }
 
         @Override
         public boolean checkUnackedList(String msgId) {
             restartTimer();
-            return unackedMessages.containsKey(msgId);
+            return unackedMessages.get(msgId) != null;
         }
 
         @Override
-        public Set<String> getUnackedMessageIds() {
+        public List<String> getUnackedMessageIds(String afterMsgId, int limit) {
+            return getUnackedMessageIds(afterMsgId == null ? 0 : FlowRegistry.parseMsgSeq(afterMsgId), limit);
+        }
+
+        @Override
+        public List<String> getUnackedMessageIds(long afterSeq, int limit) {
             restartTimer();
-            return unackedMessages.keySet();
+            List<String> msgIds = new ArrayList<>();
+            for (UnackedMessage browsed : unackedMessages.list(afterSeq, limit)) {
+                msgIds.add(browsed.msgId);
+            }
+            return msgIds;
         }
     }
     // END INNER ///////////////////////////////////////////////
@@ -0,0 +1,26 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.JCSMPException;
+
+/** a consumer flow whose messages are ACKed (or released) one at a time, rather than by a commit */
+public interface ConsumableFlow extends Flow {
+
+    /** ack this message back to the broker and stop tracking it */
+    public void ackMessage(String msgId);
+    
+    /** cumulative ack: this message and every older one still held; returns how many that was */
+    public int ackMessagesUpTo(String msgId);
+    
+    /** what the client wants done with a message it can't process */
+    enum Outcome {
+        FAILED,    // try it again, counts towards max redeliveries
+        REJECTED,  // never going to work, straight to the DMQ
+        ;
+    }
+    
+    /** give this message back to the queue (or the DMQ) instead of ACKing it, and stop tracking it */
+    public void releaseMessage(String msgId, Outcome outcome) throws JCSMPException;
+    
+    /** restart this message's visibility timeout (seconds, 0 for none); false if we aren't holding it */
+    public boolean setVisibilityTimeout(String msgId, int seconds);
+}
@@ -1,8 +1,12 @@
 package com.solace.aaron.restQ;
 
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.jcsmp.BytesXMLMessage;
 import com.solacesystems.jcsmp.ClosedFacilityException;
 import com.solacesystems.jcsmp.ConsumerFlowProperties;
+import com.solacesystems.jcsmp.DeliveryMode;
+import com.solacesystems.jcsmp.Destination;
+import com.solacesystems.jcsmp.FlowEvent;
 import com.solacesystems.jcsmp.FlowEventArgs;
 import com.solacesystems.jcsmp.FlowEventHandler;
 import com.solacesystems.jcsmp.FlowReceiver;
@@ -11,15 +15,27 @@ import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPFactory;
 import com.solacesystems.jcsmp.JCSMPProperties;
 import com.solacesystems.jcsmp.JCSMPSession;
+import com.solacesystems.jcsmp.JCSMPStreamingPublishCorrelatingEventHandler;
 import com.solacesystems.jcsmp.OperationNotSupportedException;
+import com.solacesystems.jcsmp.ProducerFlowProperties;
 import com.solacesystems.jcsmp.Queue;
+import com.solacesystems.jcsmp.Topic;
+import com.solacesystems.jcsmp.XMLMessageListener;
+import com.solacesystems.jcsmp.XMLMessageProducer;
+import com.solacesystems.jcsmp.transaction.RollbackException;
+import com.solacesystems.jcsmp.transaction.TransactedSession;
 import java.io.StringReader;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
@@ -29,29 +45,36 @@ import org.apache.logging.log4j.Logger;
 class ConsumerFlowManager implements FlowManager {
 
 
-    private Map<String,String> queueToFlowIdMap = new HashMap<>();
-    private Map<String,String> flowIdToQueueMap = new HashMap<>();
-    private Map<String,ConsumerFlow> queueToFlowMap = new HashMap<>();
-    private Map<String,ConsumerFlow> flowIdToFlowMap = new HashMap<>();
+    private Map<String,Set<String>> queueToFlowIdsMap = new ConcurrentHashMap<>();  // queue -> all the flows bound to it, up to flow.maxPerQueue
+    // flowId -> flow is the shared FlowRegistry
 
     private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
     
+    private XMLMessageProducer producer = null;  // for push-mode flows, don't have one until the Session connects
     
-    // empty constructor!
+    ConsumerFlowManager() {
+        final int sweepIntervalMs = RestQProps.getInt(Props.VISIBILITY_SWEEP_INTERVAL_MS);  // not reloadable, it's scheduled once here
+        pool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                releaseExpiredMessages();
+            }
+        }, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    void setProducer(XMLMessageProducer producer) {
+        this.producer = producer;
+    }
     
     
     public Flow connectToQueue(JCSMPSession session, RequestMessageObject rmo)
             throws OperationNotSupportedException, JCSMPErrorResponseException, JCSMPException {
         String queueName = rmo.resourceName;
-        // configure the queue API object locally
-        final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueName);
-        // Create a Flow be able to bind to and consume messages from the Queue.
-        final ConsumerFlowProperties flow_prop = new ConsumerFlowProperties();
-        flow_prop.setEndpoint(queue);
-        flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_CLIENT);  // ACK later manually
-        flow_prop.setTransportWindowSize(FlowManager.FLOW_TRANSPORT_WINDOW_SIZE);  // why not?  REST consumers aren't fast!
-        flow_prop.setActiveFlowIndication(true);
+        // usually just the one queue, but could be a comma-separated list or a partitioned prefix (fan-in)
+        List<String> memberQueueNames = UsefulUtils.parseQueueNames(queueName, rmo.getParam("partitions"));
         String selector = rmo.getParam("selector");  // might be null if not set
+        final boolean push = rmo.getParam("push") != null;
+        final boolean autoAck = "auto".equals(rmo.getParam("ackMode"));
 
 //        if (!rmo.payloadString.isEmpty()) {
 //            JsonReader reader = Json.createReader(new StringReader(rmo.payloadString));
@@ -62,25 +85,41 @@ class ConsumerFlowManager implements FlowManager {
 //                throw e;
 //            }
 //        }
-        if (selector != null) flow_prop.setSelector(selector);
-        System.out.printf("Attempting to bind to queue '%s' on the broker.%n", queueName);
-        FlowReceiver flowQueueReceiver = null;
+        List<Member> members = new ArrayList<>();
+        for (String memberQueueName : memberQueueNames) {
+            // configure the queue API object locally
+            final Queue queue = JCSMPFactory.onlyInstance().createQueue(memberQueueName);
+            // Create a Flow be able to bind to and consume messages from the Queue.
+            final ConsumerFlowProperties flow_prop = new ConsumerFlowProperties();
+            flow_prop.setEndpoint(queue);
+            if (autoAck) {  // at-most-once: JCSMP ACKs as soon as we've got it, no bookkeeping
+                flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_AUTO);
+            } else {
+                flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_CLIENT);  // ACK later manually
+            }
+            if (push) {  // pushing is quick, so let the broker keep the pipe full
+                flow_prop.setTransportWindowSize(getPushWindow(rmo));
+            } else {
+                flow_prop.setTransportWindowSize(RestQProps.getInt(Props.FLOW_TRANSPORT_WINDOW_SIZE));  // why not?  REST consumers aren't fast!
+            }
+            flow_prop.setActiveFlowIndication(true);
+            if (selector != null) flow_prop.setSelector(selector);
+            members.add(new Member(memberQueueName, flow_prop));
+        }
+        System.out.printf("Attempting to bind to queue(s) %s on the broker.%n", memberQueueNames);
+        final String flowId = registry.newFlowId();
+        boolean registered = false;
         try {
-            flowQueueReceiver = session.createFlow(null, flow_prop, null, new FlowEventHandler() {
-                @Override
-                public void handleEvent(Object source, FlowEventArgs event) {
-                    // ### Type: 'FLOW_RECONNECTED', Info: 'OK', ResponseCode: '200', Exception: 'null'
-                    // ### Type: 'FLOW_ACTIVE', Info: 'Flow becomes active', ResponseCode: '0', Exception: 'null'
-                    System.out.printf("### Flow event for '%s': %s%n",((FlowReceiver)source).getEndpoint(),event);
-                }
-            });  // super basic blocking/sync queue receiver
+            ConsumerFlow flow = "true".equals(rmo.getParam("transacted"))  // super basic blocking/sync queue receiver(s), unless it's pushing
+                    ? new TransactedConsumerFlow(flowId, rmo, session, members)
+                    : new AckingConsumerFlow(flowId, rmo, session, members);
             System.out.println("SUCCESS!");
-            ConsumerFlow flow = new ConsumerFlow(queueName, rmo.uuid, flowQueueReceiver);
+            registry.register(flow);
+            registered = true;
             flow.restartTimer();
-            queueToFlowIdMap.put(queueName,flow.getFlowId());
-            flowIdToQueueMap.put(flow.getFlowId(), queueName);
-            queueToFlowMap.put(queueName, flow);
-            flowIdToFlowMap.put(flow.getFlowId(), flow);
+            for (String memberQueueName : memberQueueNames) {
+                queueToFlowIdsMap.computeIfAbsent(memberQueueName, k -> ConcurrentHashMap.newKeySet()).add(flowId);
+            }
 //            return new ConsumerFlow(queueName, reqCorrId, flowQueueReceiver);
             return flow;
         } catch (OperationNotSupportedException e) {  // not allowed to do this
@@ -92,88 +131,207 @@ class ConsumerFlowManager implements FlowManager {
         } catch (JCSMPException e) {
             logger.error("Nope, couldn't do that!",e);
             throw e;
+        } finally {
+            if (!registered) registry.release(flowId);
         }
     }
 
+    private static int getPushWindow(RequestMessageObject rmo) {
+        return rmo.getParam("pushWindow") == null ? RestQProps.getInt(Props.FLOW_PUSH_DEFAULT_WINDOW) : Integer.parseInt(rmo.getParam("pushWindow"));
+    }
+
     @Override
     public void unbind(String queueName, String flowId) {
-        assert queueName.equals(flowIdToQueueMap.get(flowId));
-        assert flowId.equals(queueToFlowIdMap.get(queueName));
-        assert queueToFlowMap.get(queueName).equals(flowIdToFlowMap.get(flowId));
-        
-        ConsumerFlow flow = flowIdToFlowMap.get(flowId);
-        flow.flowReceiver.close();
-        queueToFlowIdMap.remove(queueName);  // get rid of queue-mapped objects
-        queueToFlowMap.remove(queueName);
-        // but leave the flowId-mapped objects just in case
+        ConsumerFlow flow = (ConsumerFlow)getFlowFromId(flowId);
+        assert flow != null && queueName.equals(flow.getQueueName());
+        flow.close();
+        for (Member member : flow.members) {  // get rid of queue-mapped objects
+            Set<String> flowIds = queueToFlowIdsMap.get(member.queueName);
+            if (flowIds != null) {
+                flowIds.remove(flowId);
+                if (flowIds.isEmpty()) queueToFlowIdsMap.remove(member.queueName);
+            }
+        }
+        // but leave it in the registry just in case, its slot gets reused eventually
     }
 
     
 
     @Override
     public boolean doesQueueHaveBoundFlow(String queueName) {
-        System.out.println(">> queueToFlowIdMap.containsKey?  "+queueName+"  --> "+queueToFlowIdMap.containsKey(queueName));
-        System.out.println(">> queueToFlowMap.containsKey?  "+queueName+"  --> "+queueToFlowMap.containsKey(queueName));
-        return queueToFlowIdMap.containsKey(queueName);
+        return getBoundFlowCount(queueName) > 0;
+    }
+
+    @Override
+    public int getBoundFlowCount(String queueName) {
+        Set<String> flowIds = queueToFlowIdsMap.get(queueName);
+        if (flowIds == null) return 0;
+        flowIds.removeIf(flowId -> {  // timed out or gave up recovering, doesn't count any more
+            Flow flow = registry.lookup(flowId);
+            return flow == null || flow.isClosed();
+        });
+        return flowIds.size();
     }
 
     @Override
     public boolean doesFlowExist(String flowId) {
-        System.out.println(">> flowIdToFlowMap.containsKey?  "+flowId+"  --> "+flowIdToFlowMap.containsKey(flowId));
-        System.out.println(">> flowIdToQueueMap.containsKey?  "+flowId+"  --> "+flowIdToQueueMap.containsKey(flowId));
-        return flowIdToFlowMap.containsKey(flowId);
+        Flow flow = getFlowFromId(flowId);
+        return flow != null && !flow.isClosed();
     }
 
     
     @Override
-    public String getFlowIdForQueue(String queueName) {
-        return queueToFlowIdMap.get(queueName);
+    public Set<String> getFlowIdsForQueue(String queueName) {
+        Set<String> flowIds = queueToFlowIdsMap.get(queueName);
+        return flowIds == null ? Collections.emptySet() : Collections.unmodifiableSet(flowIds);
     }
     
     
-//    @Override
-//    public Flow getFlow(String queueName) {
-//        return queueToFlowMap.get(queueName);
-//    }
-
     @Override
     public Flow getFlowFromId(String flowId) {
-        return flowIdToFlowMap.get(flowId);
+        Flow flow = registry.lookup(flowId);
+        return flow instanceof ConsumerFlow ? flow : null;  // not a browser flow
+    }
+    
+    private List<ConsumerFlow> getFlows() {
+        List<ConsumerFlow> flows = new ArrayList<>();
+        for (Flow flow : registry.getFlows()) {
+            if (flow instanceof ConsumerFlow) flows.add((ConsumerFlow)flow);
+        }
+        return flows;
     }
 
-//    @Override
-//    public BytesXMLMessage getUnackedMessage(String queueName, String msgId) {
-//        // checks should already have been done to confirm this queue is legit
-//        assert queueToFlowMap.containsKey(queueName);
-//        return queueToFlowMap.get(queueName).unackedMessages.get(msgId);
-//    }
+    /**
+     * Visibility timeout sweeper: anything a client has been sitting on for too long gets released back
+     * to the queue as 'failed', just as if the client had NACKed it.
+     */
+    private void releaseExpiredMessages() {
+        if (producer == null) return;  // not connected yet
+        final long now = System.currentTimeMillis();
+        for (ConsumerFlow consumerFlow : getFlows()) {
+            if (consumerFlow.isClosed() || !(consumerFlow instanceof AckingConsumerFlow)) continue;  // transacted flows don't time out messages
+            final AckingConsumerFlow flow = (AckingConsumerFlow)consumerFlow;
+            final List<String> expired = flow.getExpiredMessageIds(now);
+            if (expired.isEmpty()) continue;
+            try {
+                publishPool.execute(new Runnable() {  // releasing is a send, which can block; not on the timer thread
+                    @Override
+                    public void run() {
+                        for (String msgId : expired) {
+                            try {
+                                logger.debug("Visibility timeout on msgId {}, flow {}", msgId, flow.getFlowId());
+                                flow.releaseMessage(msgId, ConsumableFlow.Outcome.FAILED);
+                            } catch (JCSMPException | RuntimeException e) {
+                                logger.error("Couldn't release expired msgId {} on flow {}", msgId, flow.getFlowId(), e);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {  // shutting down; they'll be redelivered once the flow's closed
+                logger.info("Not releasing {} expired messages on flow {}, shutting down", expired.size(), flow.getFlowId());
+            }
+        }
+    }
 
     /**
-     * For every FlowReceiver, initiate close()
+     * For every FlowReceiver, initiate close(), all at once
      */
     @Override
     public void shutdown() {
-        for (ConsumerFlow flow : flowIdToFlowMap.values()) {
-            flow.flowReceiver.close();
+        FlowManager.closeAll(getFlows());
+    }
+
+    /**
+     * JCSMP re-binds the flows itself after a Session reconnect, but the broker will redeliver anything
+     * that was outstanding, so those msgIds are now useless.  Flows that don't come back raise FLOW_DOWN.
+     */
+    @Override
+    public void onSessionReconnected() {
+        for (ConsumerFlow flow : getFlows()) {
+            flow.invalidateUnacked();
         }
     }
     
     /////////////////////////////////////////////////
     // INNER CLASS
 
-    private class ConsumerFlow implements Flow {
+    /** one of the JCSMP flows underneath a ConsumerFlow: normally there is only one, more for a fan-in bind */
+    private static class Member {
+        
+        private final String queueName;
+        private final ConsumerFlowProperties flowProps;  // needed to re-create the flow during recovery
+        private volatile FlowReceiver flowReceiver;      // the JCSMP flow receiver to receive messages on, replaced during recovery
         
-        private final String queueName;             // obvious
-        private final String flowId;                                   // the auto-gen flowId, derived from original MicroGateway request correlationid
-        private final String magicKey = UUID.randomUUID().toString();  // needed to close the flow
-        private final FlowReceiver flowReceiver;                 // the JCSMP flow receiver to receive messages on
-        private final Map<String,BytesXMLMessage> unackedMessages = new HashMap<>();  // corrID -> message
-        private ScheduledFuture<?> futureTask = null;       // timer for inactivity
-
-        private ConsumerFlow(String queueName, String flowId, FlowReceiver flowReceiver) {
+        private Member(String queueName, ConsumerFlowProperties flowProps) {
             this.queueName = queueName;
+            this.flowProps = flowProps;
+        }
+    }
+    
+    /**
+     * What every kind of consumer flow has: the member JCSMP flow(s), receiving (filtered, round-robin for a fan-in)
+     * and the msgIds handed out.  How the messages get ACKed is up to the subclass: one at a time by the client (or
+     * JCSMP, for auto-ACK) in an AckingConsumerFlow, or all at once by a commit in a TransactedConsumerFlow.
+     */
+    private abstract class ConsumerFlow extends RecoverableFlow {
+        
+        final String queueName;                     // obvious; or the list/prefix of queues for a fan-in bind
+        final String flowId;                                        // from the FlowRegistry
+        private final String magicKey = FlowRegistry.newMagicKey();  // needed to close the flow
+        final JCSMPSession session;                              // needed to re-create the flow during recovery
+        final List<Member> members;                              // the JCSMP flow(s) to receive messages on
+        private int nextMember = 0;                              // round-robin position for fan-in receives
+        final UnackedIndex unackedMessages = new UnackedIndex();  // by seq, oldest first
+        final boolean autoAck;                              // at-most-once: already ACKed when we get it, so don't track anything
+        ScheduledFuture<?> futureTask = null;               // timer for inactivity
+        final PayloadFilter filter;                         // filter=, null for everything
+        final Queue filterRoute;                            // where filtered-out messages go, or null to just ACK them
+        final ReentrantLock receiveLock = new ReentrantLock();  // one receive at a time, and none while a commit/rollback is deciding what's held
+        private final PollPacer pacer = new PollPacer();    // polled mode: how long to wait on the broker, and what to tell the client when it's empty
+
+        /** everything else about the flow comes from the (already validated) bind request's params; subclasses open the receivers */
+        ConsumerFlow(String flowId, RequestMessageObject rmo, JCSMPSession session, List<Member> members) {
+            this.queueName = rmo.resourceName;
             this.flowId = flowId;
-            this.flowReceiver = flowReceiver;
+            this.session = session;
+            this.members = Collections.unmodifiableList(members);
+            this.autoAck = "auto".equals(rmo.getParam("ackMode"));
+            this.filter = PayloadFilter.compile(rmo.getParam("filter"));     // already validated
+            this.filterRoute = rmo.getParam("filterRoute") == null ? null : JCSMPFactory.onlyInstance().createQueue(rmo.getParam("filterRoute"));
+        }
+
+        /** create (and if need be start) the JCSMP flow for this member */
+        abstract FlowReceiver openReceiver(Member member, FlowEventHandler eventHandler) throws JCSMPException;
+
+        /** a message is about to go back to the client from a recv */
+        void handedOut(UnackedMessage received) {
+        }
+
+        void openReceivers() throws JCSMPException {
+            for (Member member : members) {
+                member.flowReceiver = createReceiver(member);
+            }
+        }
+
+        private FlowReceiver createReceiver(final Member member) throws JCSMPException {
+            FlowEventHandler eventHandler = new FlowEventHandler() {
+                @Override
+                public void handleEvent(Object source, FlowEventArgs event) {
+                    // ### Type: 'FLOW_RECONNECTED', Info: 'OK', ResponseCode: '200', Exception: 'null'
+                    // ### Type: 'FLOW_ACTIVE', Info: 'Flow becomes active', ResponseCode: '0', Exception: 'null'
+                    System.out.printf("### Flow event for '%s': %s%n",((FlowReceiver)source).getEndpoint(),event);
+                    if (event.getEvent() == FlowEvent.FLOW_DOWN && source == member.flowReceiver) {  // not one we've already replaced
+                        onFlowDown();
+                    }
+                }
+            };
+            return openReceiver(member, eventHandler);
+        }
+        
+        void closeReceivers() {
+            for (Member member : members) {
+                if (member.flowReceiver != null) member.flowReceiver.close();
+            }
         }
 
         @Override
@@ -190,33 +348,51 @@ class ConsumerFlowManager implements FlowManager {
             return magicKey;
         }
         
-        private void restartTimer() {
+        synchronized void restartTimer() {
             if (futureTask != null) {
                 futureTask.cancel(true);
             }
-            futureTask = pool.schedule(new FlowInactivityTimeoutTimer(this), FLOW_INACTIVITY_TIMEOUT_SEC, TimeUnit.SECONDS);
+            futureTask = pool.schedule(new FlowInactivityTimeoutTimer(this), RestQProps.getInt(Props.FLOW_INACTIVITY_TIMEOUT_SEC), TimeUnit.SECONDS);
         }
 
         @Override
-        public void close() {
-            flowReceiver.close();
+        void closeUnderlying() {
+            closeReceivers();
         }
         
+        @Override
+        void reopen() throws JCSMPException {
+            closeReceivers();     // for a fan-in, just start all of them over again
+            openReceivers();
+        }
 
-        
+        @Override
+        public void invalidateUnacked() {
+            if (!unackedMessages.isEmpty()) {
+                logger.info("Invalidating {} unacked messages on flow {}", unackedMessages.size(), flowId);
+            }
+            unackedMessages.clear();
+        }
 
         @Override
-        public BytesXMLMessage getNextMessage(String newMsgId) throws JCSMPException {
-            // this next line should be impossible if using MicroGateway, each corrId is randomized
-            if (unackedMessages.containsKey(newMsgId)) throw new AssertionError("correlation-id already exists!?");
+        public UnackedMessage getNextMessage() throws JCSMPException {
             restartTimer();
+            if (!awaitRecovery()) return null;  // still recovering, caller can check isRecovering()
             try {
-                flowReceiver.start();
-                BytesXMLMessage msg = flowReceiver.receive(FlowManager.FLOW_RECEIVE_MESSAGE_TIMEOUT_MS);
-                flowReceiver.stop();
-                if (msg != null) unackedMessages.put(newMsgId, msg);  // track this message for ACKing later
-                logger.debug(unackedMessages.toString());
-                return msg;
+                UnackedMessage received;
+                receiveLock.lock();  // not synchronized: a virtual thread blocked in receive() would pin its carrier
+                try {
+                    final int waitMs = pacer.getReceiveWaitMs(System.currentTimeMillis());
+                    received = members.size() == 1
+                            ? receive(members.get(0), waitMs)
+                            : receiveRoundRobin(waitMs);
+                    if (received == null) pacer.onEmpty();
+                    else pacer.onMessage(System.currentTimeMillis());
+                } finally {
+                    receiveLock.unlock();
+                }
+                if (received != null) handedOut(received);
+                return received;
             } catch (ClosedFacilityException e) {  // this Flow is shut!
                 e.printStackTrace();
                 throw e;
@@ -224,30 +400,458 @@ class ConsumerFlowManager implements FlowManager {
         }
         
         @Override
-        public BytesXMLMessage getUnackedMessage(String msgId) {
-            assert unackedMessages.containsKey(msgId);
+        public long getNextPollMs() {
+            receiveLock.lock();
+            try {
+                return pacer.getNextPollMs(System.currentTimeMillis());
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+        
+        private UnackedMessage receive(Member member, int timeoutMs) throws JCSMPException {
+            FlowReceiver flowReceiver = member.flowReceiver;
+            flowReceiver.start();
+            try {
+                final long deadline = System.currentTimeMillis() + timeoutMs;
+                final int maxSkips = RestQProps.getInt(Props.FILTER_MAX_SKIPS_PER_RECEIVE);
+                for (int skipped = 0; skipped <= maxSkips; skipped++) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    BytesXMLMessage msg = timeoutMs > 0 && remaining > 0 ? flowReceiver.receive((int)remaining) : flowReceiver.receiveNoWait();
+                    if (msg == null) return null;
+                    if (filter == null || filter.matches(msg)) return track(msg, member);
+                    filterOut(msg, member);  // and keep looking, the client never has to see it
+                }
+                return null;  // lots of them and none matching, let the client come back
+            } finally {
+                flowReceiver.stop();
+            }
+        }
+        
+        /** didn't match the filter: ACK it (unless that's already done), or move it to filterRoute then ACK it */
+        void filterOut(final BytesXMLMessage msg, Member member) {
+            if (filterRoute == null) {
+                if (!autoAck) msg.ackMessage();
+                return;
+            }
+            BytesXMLMessage copy = JCSMPFactory.onlyInstance().createMessage(msg);
+            copy.setDeliveryMode(DeliveryMode.PERSISTENT);
+            copy.setCorrelationKey(new PublishCallback() {
+                @Override
+                public void onPublished() {
+                    if (!autoAck) msg.ackMessage();
+                }
+                
+                @Override
+                public void onPublishFailed(JCSMPException cause) {  // stays un-ACKed, so it'll come back when the flow closes
+                    logger.error("Couldn't route filtered message from {} to {}", flowId, filterRoute.getName(), cause);
+                }
+            });
+            try {
+                producer.send(copy, filterRoute);
+            } catch (JCSMPException e) {
+                logger.error("Couldn't route filtered message from {} to {}", flowId, filterRoute.getName(), e);
+            }
+        }
+        
+        /** gives it a msgId, and unless it's already been auto-ACKed, holds onto it until it's ACKed */
+        UnackedMessage track(BytesXMLMessage msg, Member member) {
+            return autoAck ? unackedMessages.skip(msg, member.queueName) : unackedMessages.add(msg, member.queueName);
+        }
+        
+        /**
+         * Fan-in: take whatever is already waiting, starting after the member that served last time so none
+         * of them starve.  If they're all empty, split the receive wait across them.  Acks still go back
+         * to the right queue since each message is acked on the FlowReceiver it came in on.
+         */
+        private UnackedMessage receiveRoundRobin(int waitMs) throws JCSMPException {
+            final int size = members.size();
+            for (int i = 0; i < size; i++) {
+                int index = (nextMember + i) % size;
+                UnackedMessage msg = receive(members.get(index), 0);
+                if (msg != null) {
+                    nextMember = (index + 1) % size;
+                    return msg;
+                }
+            }
+            final int slice = Math.max(1, waitMs / size);
+            for (int i = 0; i < size; i++) {
+                int index = (nextMember + i) % size;
+                UnackedMessage msg = receive(members.get(index), slice);
+                if (msg != null) {
+                    nextMember = (index + 1) % size;
+                    return msg;
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public UnackedMessage getUnackedMessage(String msgId) {
+            UnackedMessage unacked = unackedMessages.get(msgId);
+            assert unacked != null;
             restartTimer();
-            return unackedMessages.get(msgId);
+            return unacked;
         }
 
         
-//        @Override
-//        public void ackMessage(String msgId) throws IllegalStateException {
-//            assert unackedMessages.containsKey(msgId);
-//            unackedMessages.get(msgId).ackMessage();
-//        }
-
         @Override
         public boolean checkUnackedList(String msgId) {
             restartTimer();
-            return unackedMessages.containsKey(msgId);
+            return unackedMessages.get(msgId) != null;
+        }
+
+        @Override
+        public List<String> getUnackedMessageIds(String afterMsgId, int limit) {
+            return getUnackedMessageIds(afterMsgId == null ? 0 : FlowRegistry.parseMsgSeq(afterMsgId), limit);
+        }
+
+        @Override
+        public List<String> getUnackedMessageIds(long afterSeq, int limit) {
+            restartTimer();
+            List<String> msgIds = new ArrayList<>();
+            for (UnackedMessage unacked : unackedMessages.list(afterSeq, limit)) {
+                msgIds.add(unacked.msgId);
+            }
+            return msgIds;
+        }
+    }
+
+    /** ACKed (or released) one message at a time by the client, or already auto-ACKed; polled with recv, or pushed */
+    private class AckingConsumerFlow extends ConsumerFlow implements ConsumableFlow {
+        
+        private final VisibilityDeadlines visibilityDeadlines = new VisibilityDeadlines(unackedMessages);  // soonest first, for the sweeper
+        private final int visibilityTimeoutSec;             // default for each message handed out, 0 for none
+        private final Topic pushTopic;                      // push mode: where each message goes as soon as it arrives
+        private final int pushWindow;                       // push mode: max outstanding unacked messages
+        private final String pushFormat;                    // push mode: the format= to render messages with
+        private final FieldSelection pushFields;            // push mode: the fields= to render, null for all of them
+        private boolean pushPaused = false;                 // push mode: window is full, receivers are stopped until some ACKs come in
+
+        private AckingConsumerFlow(String flowId, RequestMessageObject rmo, JCSMPSession session, List<Member> members) throws JCSMPException {
+            super(flowId, rmo, session, members);
+            this.visibilityTimeoutSec = rmo.getParam("visibility") == null ? 0 : Integer.parseInt(rmo.getParam("visibility"));
+            this.pushTopic = rmo.getParam("push") == null ? null : JCSMPFactory.onlyInstance().createTopic(rmo.getParam("push"));
+            this.pushWindow = getPushWindow(rmo);
+            this.pushFormat = rmo.getParam("format");
+            this.pushFields = FieldSelection.parse(rmo.getParam("fields"));  // already validated
+            try {
+                openReceivers();
+            } catch (JCSMPException e) {  // all or nothing
+                closeReceivers();
+                throw e;
+            }
+        }
+
+        @Override
+        FlowReceiver openReceiver(Member member, FlowEventHandler eventHandler) throws JCSMPException {
+            FlowReceiver flowReceiver = session.createFlow(pushTopic == null ? null : new PushListener(member), member.flowProps, null, eventHandler);
+            final boolean startNow;
+            synchronized (this) {
+                startNow = pushTopic != null && !pushPaused;
+            }
+            if (startNow) flowReceiver.start();  // async flows only get going once started
+            return flowReceiver;
+        }
+        
+        /** push mode: runs on the JCSMP context thread, so no blocking calls in here */
+        private class PushListener implements XMLMessageListener {
+            
+            private final Member member;
+            
+            private PushListener(Member member) {
+                this.member = member;
+            }
+            
+            @Override
+            public void onReceive(final BytesXMLMessage msg) {
+                if (filter != null && !filter.matches(msg)) {
+                    if (filterRoute == null) {
+                        filterOut(msg, member);
+                    } else {  // a Guaranteed send could block on the publish window, not on this thread (nor behind a recovery)
+                        try {
+                            publishPool.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    filterOut(msg, member);
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {  // shutting down; unless it was auto-ACKed it'll be redelivered
+                            logger.info("Not routing filtered message from {}, shutting down", flowId);
+                        }
+                    }
+                    return;
+                }
+                UnackedMessage unacked = track(msg, member);  // for ACKing later
+                final String msgId = unacked.msgId;
+                if (!autoAck) {
+                    startVisibilityTimeout(unacked, visibilityTimeoutSec);
+                    restartTimer();  // only ticks while the client owes us ACKs
+                }
+                try {
+                    producer.send(UsefulUtils.formatResponseMessage(unacked, pushFormat, pushFields), pushTopic);
+                } catch (JCSMPException e) {  // it's still tracked, the client can GET it via getMsg
+                    logger.error("Couldn't push msgId {} on flow {} to {}", msgId, flowId, pushTopic, e);
+                }
+                synchronized (AckingConsumerFlow.this) {
+                    if (!pushPaused && unackedMessages.size() >= pushWindow) {  // window full, stop until some ACKs arrive
+                        pushPaused = true;
+                        for (Member member : members) {
+                            member.flowReceiver.stop();
+                        }
+                    }
+                }
+            }
+            
+            @Override
+            public void onException(JCSMPException e) {
+                logger.error("Push listener exception on flow {}", flowId, e);
+            }
+        }
+        
+        @Override
+        public void invalidateUnacked() {
+            super.invalidateUnacked();
+            visibilityDeadlines.clear();
+        }
+
+        @Override
+        public String getPushTopic() {
+            return pushTopic == null ? null : pushTopic.getName();
+        }
+
+        @Override
+        void handedOut(UnackedMessage received) {
+            if (autoAck) return;  // fire and forget
+            startVisibilityTimeout(received, visibilityTimeoutSec);
+            logger.debug(unackedMessages.toString());
+        }
+
+        @Override
+        public void ackMessage(String msgId) throws IllegalStateException {
+            UnackedMessage unacked = unackedMessages.remove(msgId);
+            if (unacked == null) throw new IllegalStateException("msgId "+msgId+" is no longer held, its visibility timeout may have expired");
+            afterRemoval();
+            unacked.msg.ackMessage();  // if flow is closed, might die
+        }
+        
+        @Override
+        public int ackMessagesUpTo(String msgId) {
+            List<UnackedMessage> acked = unackedMessages.removeUpTo(FlowRegistry.parseMsgSeq(msgId));
+            afterRemoval();
+            for (UnackedMessage unacked : acked) {
+                unacked.msg.ackMessage();  // if flow is closed, might die
+            }
+            return acked.size();
+        }
+        
+        /**
+         * There's no way to NACK a single message back onto the queue with this version of JCSMP (it has no
+         * settlement outcomes), so fake it: publish a persistent copy (back onto its queue, or to nack.dmqName)
+         * and only ACK the original once the broker has spooled the copy.  The copy is a brand new message as far
+         * as the broker is concerned, which costs:
+         * - it goes to the back of the queue, not the front
+         * - it isn't flagged as redelivered, and gets a new message ID
+         * - the broker's redelivery count starts again, so the queue's max-redelivery limit never sends it to the
+         *   DMQ, and its TTL (the header is copied, along with DMQ eligibility) counts from when the copy was spooled
+         * So we count redeliveries ourselves, in the restQ_deliveryCount user property, against nack.maxRedeliveries.
+         */
+        @Override
+        public void releaseMessage(String msgId, Outcome outcome) throws JCSMPException {
+            final UnackedMessage unacked = unackedMessages.remove(msgId);  // the client is done with it either way
+            if (unacked == null) return;  // beaten to it by an ACK or the visibility sweeper
+            afterRemoval();
+            int deliveryCount = UsefulUtils.getRestQDeliveryCount(unacked.msg) + 1;
+            final String target;
+            if (outcome == Outcome.FAILED && deliveryCount < RestQProps.getInt(Props.NACK_MAX_REDELIVERIES)) {
+                target = unacked.queueName;
+            } else {  // rejected, or failed too many times
+                target = RestQProps.getString(Props.NACK_DMQ_NAME);
+            }
+            BytesXMLMessage copy = JCSMPFactory.onlyInstance().createMessage(unacked.msg);
+            copy.setDeliveryMode(DeliveryMode.PERSISTENT);
+            copy.setProperties(UsefulUtils.withRestQDeliveryCount(unacked.msg.getProperties(), deliveryCount));
+            copy.setCorrelationKey(new PublishCallback() {
+                @Override
+                public void onPublished() {
+                    unacked.msg.ackMessage();  // safe to let go of the original now
+                    logger.debug("Released {} to {}", unacked, target);
+                }
+                
+                @Override
+                public void onPublishFailed(JCSMPException cause) {  // the original stays un-ACKed, so it'll come back when the flow closes
+                    logger.error("Couldn't release {} to {}", unacked, target, cause);
+                }
+            });
+            producer.send(copy, JCSMPFactory.onlyInstance().createQueue(target));
+        }
+
+        /** after a message gets ACKed or released: timer, and for push flows maybe open the window back up */
+        private void afterRemoval() {
+            if (pushTopic == null) {
+                restartTimer();
+                return;
+            }
+            final boolean resume;
+            synchronized (this) {
+                if (unackedMessages.isEmpty() && futureTask != null) {  // push flows don't time out while idle
+                    futureTask.cancel(false);
+                }
+                resume = pushPaused && unackedMessages.size() < pushWindow;  // room in the window again
+                if (resume) pushPaused = false;
+            }
+            if (resume) {  // outside the lock, the JCSMP context thread might want it
+                for (Member member : members) {
+                    try {
+                        member.flowReceiver.start();
+                    } catch (JCSMPException e) {
+                        logger.error("Couldn't restart push on flow {}", flowId, e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean setVisibilityTimeout(String msgId, int seconds) {
+            UnackedMessage unacked = unackedMessages.get(msgId);
+            if (unacked == null) return false;
+            startVisibilityTimeout(unacked, seconds);
+            return true;
+        }
+        
+        private void startVisibilityTimeout(UnackedMessage unacked, int seconds) {
+            unacked.setVisibilityTimeout(seconds);
+            visibilityDeadlines.add(unacked);
+        }
+
+        /** just the ones that are due, they're taken out of the deadline queue as we go */
+        private List<String> getExpiredMessageIds(long nowMs) {
+            List<String> expired = new ArrayList<>();
+            for (UnackedMessage unacked : visibilityDeadlines.pollExpired(nowMs)) {
+                expired.add(unacked.msgId);
+            }
+            return expired;
+        }
+    }
+
+    /**
+     * Everything received on the flow is ACKed by the next commit, along with any publishes that go with it, or
+     * given back by a rollback.  Never pushes, auto-ACKs, filters or has visibility timeouts, that's checked at bind.
+     */
+    private class TransactedConsumerFlow extends ConsumerFlow implements TransactedFlow {
+
+        private final TransactedSession txSession;          // the member flows and txProducer live in here
+        private final XMLMessageProducer txProducer;        // publishes that only go out on commit
+
+        private TransactedConsumerFlow(String flowId, RequestMessageObject rmo, JCSMPSession session, List<Member> members) throws JCSMPException {
+            super(flowId, rmo, session, members);
+            this.txSession = session.createTransactedSession();
+            try {
+                this.txProducer = txSession.createProducer(new ProducerFlowProperties(), new JCSMPStreamingPublishCorrelatingEventHandler() {
+                    @Override
+                    public void responseReceivedEx(Object key) {
+                        // nothing to do, commit() tells us how it went
+                    }
+
+                    @Override
+                    public void handleErrorEx(Object key, JCSMPException cause, long timestamp) {
+                        logger.error("Transacted publish failed on flow {}", flowId, cause);
+                    }
+                });
+                openReceivers();
+            } catch (JCSMPException e) {  // all or nothing
+                closeReceivers();
+                txSession.close();
+                throw e;
+            }
+        }
+
+        @Override
+        FlowReceiver openReceiver(Member member, FlowEventHandler eventHandler) throws JCSMPException {
+            return txSession.createFlow(null, member.flowProps, null, eventHandler);
+        }
+
+        @Override
+        void closeUnderlying() {
+            closeReceivers();
+            txSession.close();  // anything not committed gets rolled back by the broker
+        }
+
+        @Override
+        void reopen() throws JCSMPException {
+            closeReceivers();
+            try {
+                txSession.rollback();  // the transaction went down with the flow anyway
+            } catch (JCSMPException e) {
+                logger.info("Rollback during recovery of flow {} failed: {}", flowId, e.toString());
+            }
+            openReceivers();
+        }
+
+        @Override
+        public String getPushTopic() {
+            return null;  // checked at bind
+        }
+
+        /**
+         * JCSMP transactions are all or nothing: a commit ACKs every message received on the transacted session
+         * since the last one, so the client can't pick and choose; a msgIds list that doesn't match what we hold
+         * is refused rather than silently ACKing more (or fewer) than it asked for.
+         */
+        @Override
+        public int commit(Set<String> msgIds, List<Map.Entry<Destination,BytesXMLMessage>> publishes) throws JCSMPException, IllegalStateException {
+            restartTimer();
+            receiveLock.lock();
+            try {
+                List<UnackedMessage> held = unackedMessages.list();
+                if (msgIds != null) {
+                    Set<String> heldIds = new HashSet<>();
+                    for (UnackedMessage unacked : held) {
+                        heldIds.add(unacked.msgId);
+                    }
+                    if (!heldIds.equals(msgIds)) throw new IllegalStateException("a commit ACKs every msgId held on the flow: " + heldIds);
+                }
+                try {
+                    for (Map.Entry<Destination,BytesXMLMessage> publish : publishes) {
+                        publish.getValue().setDeliveryMode(DeliveryMode.PERSISTENT);
+                        txProducer.send(publish.getValue(), publish.getKey());
+                    }
+                    txSession.commit();
+                } catch (RollbackException e) {  // the broker rolled it all back: nothing published, everything redelivered
+                    invalidateUnacked();
+                    throw e;
+                } catch (JCSMPException | RuntimeException e) {  // half-published, so undo it ourselves
+                    rollbackQuietly();
+                    throw e;
+                }
+                unackedMessages.clear();
+                return held.size();
+            } finally {
+                receiveLock.unlock();
+            }
         }
 
         @Override
-        public Set<String> getUnackedMessageIds() {
+        public void rollback() throws JCSMPException {
             restartTimer();
-            return unackedMessages.keySet();
+            receiveLock.lock();
+            try {
+                invalidateUnacked();  // redelivered with new msgIds
+                txSession.rollback();
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+
+        private void rollbackQuietly() {
+            invalidateUnacked();
+            try {
+                txSession.rollback();
+            } catch (JCSMPException e) {
+                logger.error("Couldn't roll back flow {}", flowId, e);
+            }
         }
+
     }
     // END INNER ///////////////////////////////////////////////
 
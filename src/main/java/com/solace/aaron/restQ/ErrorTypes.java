@@ -7,12 +7,24 @@ public enum ErrorTypes {
 
     INVALID_URL_PARAMS("invalid combination of URL query parameters passed, please check docs", 400),
 
-    FLOW_CLOSED_TIMEOUT("this flow has been closded due to inactivity", 501),
+    /** a flowId we handed out whose flow has since closed (inactivity, or it couldn't be re-bound), even if its slot's been reused */
+    FLOW_CLOSED_TIMEOUT("this flow has been closed due to inactivity or a lost bind, bind a new one", 410),
+    FLOW_RECOVERING("this flow is being re-bound to the queue, try again shortly", 503),
     NO_MESSAGES("no messages available on this flow", 404),
+    BROWSER_READ_ONLY("this browser is read-only, browse with POST to be able to delete", 400),
+    FLOW_IS_PUSH("this flow pushes its messages, it can't be polled", 400),
     FLOW_ALREADY_ACTIVE("a flow to this queue is already active", 400),
+    FLOW_IS_TRANSACTED("this flow is transacted, its messages are ACKed by commit and given back by rollback", 400),
+    FLOW_NOT_TRANSACTED("this flow isn't transacted, bind with transacted=true to commit or roll back", 400),
     INVALID_MSG_ID("provided msg ID invalid", 400),
+    INVALID_CURSOR("provided cursor invalid", 400),
+    CURSOR_EXPIRED("this cursor is older than the messages still held, carry on without it", 410),
     
     URL_PARAMS_NOT_EMPTY("URL query parameters must be empty", 400),
+
+    REQUEST_IN_PROGRESS("the original of this retried request is still being handled, try again shortly", 409),
+    TOO_MANY_REQUESTS("too many requests from this client or on this flow, slow down", 429),
+    SERVER_BUSY("too many requests in progress, try again shortly", 503),
     ;
     
     
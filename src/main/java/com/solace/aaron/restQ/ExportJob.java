@@ -0,0 +1,81 @@
+package com.solace.aaron.restQ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Snapshots a queue into a file: browses every message (matching the browser's selector, up to a max count)
+ * and streams each one out through MessageFileFormat, via a big direct buffer so the file gets written in
+ * large chunks.  Nothing is consumed.  The browser flow belongs to the job and is unbound when it's done.
+ */
+class ExportJob extends AdminJob {
+
+    static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+    static final int BROWSE_BATCH = 100;
+
+    private final FlowManager browserManager;
+    private final BrowsableFlow flow;
+    private final MessageFileFormat format;
+    private final long maxMessages;
+
+    ExportJob(String jobId, FlowManager browserManager, BrowsableFlow flow, Path file, MessageFileFormat format, long maxMessages) {
+        super(jobId, flow.getQueueName(), file);
+        this.browserManager = browserManager;
+        this.flow = flow;
+        this.format = format;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    String getKind() {
+        return "export";
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            while (messages.get() < maxMessages) {
+                List<UnackedMessage> page = flow.getNextMessages(-1, (int)Math.min(BROWSE_BATCH, maxMessages - messages.get()));
+                if (page == null) {  // recovering, and browsing would start again from the front of the queue, so no good
+                    throw new IllegalStateException("browser flow went down during the export");
+                }
+                if (page.isEmpty()) break;  // waited, and there's nothing more: that's the whole queue
+                for (UnackedMessage browsed : page) {
+                    byte[] record = format.encode(browsed.msg);
+                    if (buffer.remaining() < record.length) flush(channel, buffer);
+                    if (record.length > buffer.capacity()) {  // a big one, just write it straight out
+                        writeFully(channel, ByteBuffer.wrap(record));
+                    } else {
+                        buffer.put(record);
+                    }
+                    messages.incrementAndGet();
+                    bytes.addAndGet(record.length);
+                }
+                logProgress();
+            }
+            flush(channel, buffer);
+            channel.force(false);
+        } finally {
+            browserManager.unbind(flow.getQueueName(), flow.getFlowId());
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
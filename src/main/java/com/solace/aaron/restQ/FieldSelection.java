@@ -0,0 +1,62 @@
+package com.solace.aaron.restQ;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Which parts of a message the client wants back, from fields=payload,correlationId,properties.orderId: so
+ * UsefulUtils.solaceMsgToJson() only works out (and sends) those.  Top-level names are the same keys it
+ * emits; properties.&lt;name&gt; picks single user properties out without converting the rest of the map.
+ */
+final class FieldSelection {
+
+    /** everything solaceMsgToJson() can emit */
+    static final Set<String> FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "destination", "destinationType", "applicationMessageId", "applicationMessageType", "consumerIdList",
+            "contentLength", "correlationId", "cos", "deliveryCount", "deliveryMode", "dmqEligible", "expiration",
+            "httpContentEncoding", "httpContentType", "mesageId", "priority", "redelivered", "replicationGroupMessageId",
+            "replyMessage", "replyTo", "senderId", "senderTimestamp", "sequenceNumber", "timeToLive",
+            "properties", "messageClass", "payload")));
+
+    private static final String PROPERTY_PREFIX = "properties.";
+
+    private final Set<String> fields = new HashSet<>();
+    private Set<String> propertyNames = null;  // null for all of them (if "properties" is wanted at all)
+
+    private FieldSelection() {
+    }
+
+    /** null (meaning everything) if there's no fields= param */
+    static FieldSelection parse(String param) throws IllegalArgumentException {
+        if (param == null) return null;
+        FieldSelection selection = new FieldSelection();
+        Set<String> propertyNames = new LinkedHashSet<>();
+        boolean allProperties = false;
+        for (String field : param.split(",")) {
+            field = field.trim();
+            if (field.startsWith(PROPERTY_PREFIX) && field.length() > PROPERTY_PREFIX.length()) {
+                propertyNames.add(field.substring(PROPERTY_PREFIX.length()));
+                selection.fields.add("properties");
+            } else if (FIELDS.contains(field)) {
+                if ("properties".equals(field)) allProperties = true;
+                selection.fields.add(field);
+            } else {
+                throw new IllegalArgumentException("unknown field '" + field + "'");
+            }
+        }
+        if (!allProperties && !propertyNames.isEmpty()) selection.propertyNames = Collections.unmodifiableSet(propertyNames);
+        return selection;
+    }
+
+    boolean has(String field) {
+        return fields.contains(field);
+    }
+
+    /** just these user properties, or null for all of them */
+    Set<String> getPropertyNames() {
+        return propertyNames;
+    }
+}
@@ -1,9 +1,14 @@
 package com.solace.aaron.restQ;
 
-import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.jcsmp.JCSMPException;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * What every flow has, consumer or browser.  What can be done with the messages depends on the kind of flow: see
+ * ConsumableFlow (ACK, release), TransactedFlow (commit, rollback) and BrowsableFlow (pages, browse-and-delete).
+ */
 public interface Flow {
 
     public String getQueueName();
@@ -12,16 +17,38 @@ public interface Flow {
     public String getMagicKey();
     public void close();
     
-    BytesXMLMessage getNextMessage(String newMsgId) throws JCSMPException;
-    BytesXMLMessage getUnackedMessage(String msgId);
+    /** closed on purpose (timeout, unbind, gave up recovering); its slot in the FlowRegistry can be reused */
+    public boolean isClosed();
+    
+    /** the next message along with its new msgId, or null if there wasn't one */
+    UnackedMessage getNextMessage() throws JCSMPException;
+    
+    UnackedMessage getUnackedMessage(String msgId);
 
 
-//    public void ackMessage(String msgId);
+    /** after getNextMessage() came back empty: how long the client might as well wait before asking again, 0 for no idea */
+    public long getNextPollMs();
+    
+    /** the topic this flow pushes messages to as they arrive, or null if the client polls with recv */
+    public String getPushTopic();
     
     /** used by "get specific message" to verify we are currently holding this */
     public boolean checkUnackedList(String msgId);
     
-    public Set<String> getUnackedMessageIds();
+    /** oldest first: up to limit msgIds handed out after afterMsgId, or from the oldest if that's null */
+    public List<String> getUnackedMessageIds(String afterMsgId, int limit);
+    
+    /** the same, by position: after this seq (e.g. a browse cursor), 0 for from the oldest */
+    public List<String> getUnackedMessageIds(long afterSeq, int limit);
+    
+    /** forget all the unacked messages, they are no longer valid (e.g. after a reconnect the broker will redeliver them) */
+    public void invalidateUnacked();
+    
+    /** re-create the underlying JCSMP flow under the same flowId; any unacked messages are invalidated */
+    public void recover() throws JCSMPException;
+    
+    /** true while the underlying JCSMP flow is down and being re-created */
+    public boolean isRecovering();
     
     class FlowInactivityTimeoutTimer implements Runnable {
         
@@ -41,4 +68,31 @@ public interface Flow {
         }
     }
 
+    class FlowRecoveryTask implements Runnable {
+        
+        final Flow flow;
+        final int attempt;
+        
+        FlowRecoveryTask(Flow flow, int attempt) {
+            this.flow = flow;
+            this.attempt = attempt;
+        }
+        
+        @Override
+        public void run() {
+            System.out.printf("RECOVERING %s, attempt %d%n", flow, attempt);
+            try {
+                flow.recover();
+            } catch (JCSMPException e) {
+                if (attempt < RestQProps.getInt(Props.FLOW_RECOVERY_MAX_ATTEMPTS)) {
+                    FlowManager.recoveryPool.schedule(new FlowRecoveryTask(flow, attempt + 1),
+                            (long)RestQProps.getInt(Props.FLOW_RECOVERY_RETRY_INTERVAL_MS) * attempt, TimeUnit.MILLISECONDS);
+                } else {
+                    System.out.println("GIVING UP RECOVERY ON "+flow);
+                    flow.close();  // same as a timeout: close the JCSMP flow but leave the maps alone
+                }
+            }
+        }
+    }
+
 }
@@ -1,19 +1,25 @@
 package com.solace.aaron.restQ;
 
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.jcsmp.JCSMPErrorResponseException;
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPSession;
 import com.solacesystems.jcsmp.OperationNotSupportedException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 interface FlowManager {
     
-    static final int FLOW_INACTIVITY_TIMEOUT_SEC = 120;  // if this doesn't get an ACK or nextMsg in this time, we'll close the flow
-    static final int FLOW_TRANSPORT_WINDOW_SIZE = 1;
-    static final int FLOW_RECEIVE_MESSAGE_TIMEOUT_MS = 500;
+    // the timeouts, windows, page sizes, limits etc. are all in RestQProps, so they can be tuned
 
     static ScheduledExecutorService pool = Executors.newScheduledThreadPool(1, new DaemonThreadFactory("FlowActivityTimer"));
+    static FlowRegistry registry = new FlowRegistry();  // shared by consumer and browser flows, they share the per-flowId topics
+    static ScheduledExecutorService recoveryPool = Executors.newScheduledThreadPool(1, new DaemonThreadFactory("FlowRecovery"));  // createFlow() blocks, keep it off the timer thread
+    static ExecutorService publishPool = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Publisher"));  // send() blocks when the publish window is full, keep it off the timers too
 
     
     // methods:
@@ -27,16 +33,43 @@ interface FlowManager {
     /** is there currently an active flow to this queue? */
     boolean doesQueueHaveBoundFlow(String queueName);
     
+    /** how many flows are currently bound to this queue */
+    int getBoundFlowCount(String queueName);
+    
     boolean doesFlowExist(String flowId);
     
-    String getFlowIdForQueue(String queueName);
+    Set<String> getFlowIdsForQueue(String queueName);
 //    public Flow getFlow(String queueName);
     public Flow getFlowFromId(String flowId);
     
 //    BytesXMLMessage getUnackedMessage(String queueName, String msgId);
 
+    /** the Session has come back after a reconnect: anything delivered before it is going to be redelivered */
+    void onSessionReconnected();
     
     void shutdown();
     
+    /** close all of these at once rather than one after another, and wait (a while) until they're done */
+    static void closeAll(List<? extends Flow> flows) {
+        if (flows.isEmpty()) return;
+        ExecutorService closer = Executors.newFixedThreadPool(Math.min(flows.size(), Math.max(1, RestQProps.getInt(Props.SHUTDOWN_CLOSE_THREADS))), new DaemonThreadFactory("FlowClose"));
+        for (final Flow flow : flows) {
+            closer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flow.close();
+                }
+            });
+        }
+        closer.shutdown();
+        try {
+            if (!closer.awaitTermination(RestQProps.getInt(Props.SHUTDOWN_CLOSE_TIMEOUT_MS), TimeUnit.MILLISECONDS)) {
+                System.out.printf("Gave up waiting for %d flows to close%n", flows.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     
 }
@@ -0,0 +1,135 @@
+package com.solace.aaron.restQ;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Every flow, consumer or browser, lives in one slot of a fixed-size table, and its flowId says which:
+ * <code>&lt;node&gt;-&lt;slot&gt;-&lt;tag&gt;</code>, all hex.  So looking a flow up is just an array index, plus a string
+ * compare against the random tag so nobody can guess their way into somebody else's flow.  Shared by both
+ * FlowManagers, since they share the same topic space for their per-flowId subscriptions.
+ * <p>
+ * msgIds are <code>&lt;seq&gt;-&lt;tag&gt;</code>, where seq counts up per flow, so the flows can key their unacked
+ * messages on a long.  They're only ever looked up within their flow, which has already been checked.
+ */
+final class FlowRegistry {
+
+    static final int MAX_FLOWS = 4096;  // includes closed flows, until their slot gets reused
+    static final int MAX_TOMBSTONES = 1024;  // closed flowIds remembered after their slot's been reused
+
+    private static final SecureRandom random = new SecureRandom();  // only for flowIds (and magicKeys), msgIds don't need it
+    /** random per process, so a flowId from a previous run of this (or another instance) doesn't resolve here */
+    private static final String nodePrefix = String.format("%04x", random.nextInt(0x10000));
+    private static final Object RESERVED = new Object();  // slot handed out, flow not built yet
+
+    private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(MAX_FLOWS);
+    private int nextSlot = 0;  // round-robin, so a flowId doesn't get reused as soon as its flow closes
+    /** flowIds of closed flows whose slots went to new ones, so they still get told "closed" rather than "never heard of it" */
+    private final Set<String> tombstones = Collections.newSetFromMap(new LinkedHashMap<String,Boolean>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_TOMBSTONES;
+        }
+    });
+
+    /**
+     * Claims a free slot (or one whose flow has been closed) and makes a flowId for it.  The caller must
+     * either register() the new flow or release() the id.
+     */
+    synchronized String newFlowId() throws IllegalStateException {
+        for (int i = 0; i < MAX_FLOWS; i++) {
+            int slot = (nextSlot + i) % MAX_FLOWS;
+            Object current = slots.get(slot);
+            if (current == null || (current instanceof Flow && ((Flow)current).isClosed())) {
+                if (current != null) tombstones.add(((Flow)current).getFlowId());
+                slots.set(slot, RESERVED);
+                nextSlot = (slot + 1) % MAX_FLOWS;
+                return nodePrefix + '-' + Integer.toHexString(slot) + '-' + String.format("%08x", random.nextInt());
+            }
+        }
+        throw new IllegalStateException("all " + MAX_FLOWS + " flows are in use");
+    }
+
+    void register(Flow flow) {
+        int slot = parseSlot(flow.getFlowId());
+        assert slot >= 0 && slots.get(slot) == RESERVED;
+        slots.set(slot, flow);
+    }
+
+    /** give back a slot from newFlowId() whose flow never got built */
+    void release(String flowId) {
+        int slot = parseSlot(flowId);
+        if (slot >= 0) slots.compareAndSet(slot, RESERVED, null);
+    }
+
+    /** null if there's no such flow, or its slot has been given to another one since */
+    Flow lookup(String flowId) {
+        int slot = parseSlot(flowId);
+        if (slot < 0) return null;
+        Object current = slots.get(slot);
+        if (current instanceof Flow && ((Flow)current).getFlowId().equals(flowId)) return (Flow)current;
+        return null;
+    }
+
+    /** true if this flowId was ours and its flow has closed, whether or not its slot has been reused since */
+    boolean wasClosed(String flowId) {
+        int slot = parseSlot(flowId);
+        if (slot < 0) return false;
+        Object current = slots.get(slot);
+        if (current instanceof Flow && ((Flow)current).getFlowId().equals(flowId)) return ((Flow)current).isClosed();
+        synchronized (this) {
+            return tombstones.contains(flowId);
+        }
+    }
+
+    /** everything registered, including closed flows that haven't been replaced yet */
+    List<Flow> getFlows() {
+        List<Flow> flows = new ArrayList<>();
+        for (int i = 0; i < MAX_FLOWS; i++) {
+            Object current = slots.get(i);
+            if (current instanceof Flow) flows.add((Flow)current);
+        }
+        return flows;
+    }
+
+    /** -1 if it's not one of ours */
+    static int parseSlot(String flowId) {
+        if (flowId == null || !flowId.startsWith(nodePrefix) || flowId.length() <= nodePrefix.length()
+                || flowId.charAt(nodePrefix.length()) != '-') return -1;
+        int end = flowId.indexOf('-', nodePrefix.length() + 1);
+        if (end < 0) return -1;
+        try {
+            int slot = Integer.parseInt(flowId.substring(nodePrefix.length() + 1, end), 16);
+            return slot < MAX_FLOWS ? slot : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String newMagicKey() {
+        return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+    }
+
+    static String newMsgId(long seq) {
+        return Long.toHexString(seq) + '-' + Integer.toHexString(ThreadLocalRandom.current().nextInt());
+    }
+
+    /** -1 if it's malformed; the caller still has to compare the whole msgId to check the tag */
+    static long parseMsgSeq(String msgId) {
+        int dash = msgId == null ? -1 : msgId.indexOf('-');
+        if (dash <= 0) return -1;
+        try {
+            return Long.parseLong(msgId.substring(0, dash), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Queue;
+import com.solacesystems.jcsmp.XMLMessageProducer;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays an export file back into a queue: reads it straight through (see MessageFileReader) and publishes
+ * each record as a persistent message.  Publishes are pipelined, up to a window of them waiting on the broker's
+ * ACK at once, rather than one round trip each.  Stops at the first publish the broker NACKs; anything already
+ * sent is still in the queue, so the job's message count says how far it got.
+ */
+class ImportJob extends AdminJob {
+
+    static final int DEFAULT_WINDOW = 255;          // same as the JCSMP publish window, see PUB_ACK_WINDOW_SIZE
+    static final int MAX_WINDOW = 10000;
+    static final int FINAL_ACK_WAIT_SEC = 60;       // for the last window's worth of ACKs to come back
+
+    private final MessageFileFormat format;
+    private final XMLMessageProducer producer;
+    private final int window;
+    private final int readWindowBytes;
+
+    ImportJob(String jobId, String queueName, Path file, MessageFileFormat format, XMLMessageProducer producer, int window) {
+        this(jobId, queueName, file, format, producer, window, MessageFileReader.WINDOW_BYTES);
+    }
+
+    ImportJob(String jobId, String queueName, Path file, MessageFileFormat format, XMLMessageProducer producer, int window, int readWindowBytes) {
+        super(jobId, queueName, file);
+        this.format = format;
+        this.producer = producer;
+        this.window = window;
+        this.readWindowBytes = readWindowBytes;
+    }
+
+    @Override
+    String getKind() {
+        return "import";
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueName);
+        final Semaphore inFlight = new Semaphore(window);
+        final AtomicReference<JCSMPException> failure = new AtomicReference<>();
+        PublishCallback callback = new PublishCallback() {  // the same one for every message, nothing per-message to remember
+            @Override
+            public void onPublished() {
+                messages.incrementAndGet();
+                inFlight.release();
+            }
+
+            @Override
+            public void onPublishFailed(JCSMPException cause) {
+                failure.compareAndSet(null, cause);
+                inFlight.release();
+            }
+        };
+        try (MessageFileReader reader = new MessageFileReader(file, format, readWindowBytes)) {
+            BytesXMLMessage msg;
+            while (failure.get() == null && (msg = reader.next()) != null) {
+                inFlight.acquire();
+                msg.setCorrelationKey(callback);
+                try {
+                    producer.send(msg, queue);
+                } catch (JCSMPException e) {  // never made it out, so there's no callback coming
+                    inFlight.release();
+                    throw e;
+                }
+                bytes.set(reader.getPosition());
+                logProgress();
+            }
+        }
+        if (!inFlight.tryAcquire(window, FINAL_ACK_WAIT_SEC, TimeUnit.SECONDS)) {
+            throw new IllegalStateException((window - inFlight.availablePermits()) + " publishes still not ACKed after " + FINAL_ACK_WAIT_SEC + "s");
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("publish to " + queueName + " failed after " + messages.get() + " messages", failure.get());
+        }
+    }
+}
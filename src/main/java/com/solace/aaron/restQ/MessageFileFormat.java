@@ -0,0 +1,146 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.DeliveryMode;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.TextMessage;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * How messages are laid out in an export file, one record per message.  Both use the same JSON as a recv
+ * (see UsefulUtils.solaceMsgToJson()) for the headers and properties.
+ */
+enum MessageFileFormat {
+
+    /** one JSON object per line, payload included; easy to grep/jq, but JSON payloads get re-serialized */
+    NDJSON("ndjson"),
+    /** big-endian int length + JSON headers (no payload), then int length + the payload bytes exactly as they were */
+    LENGTH_PREFIXED("lp"),
+    ;
+
+    final String param;  // what format= says
+
+    MessageFileFormat(String param) {
+        this.param = param;
+    }
+
+    /** null if it's none of ours */
+    static MessageFileFormat fromParam(String param) {
+        if (param == null) return NDJSON;
+        for (MessageFileFormat format : values()) {
+            if (format.param.equals(param)) return format;
+        }
+        return null;
+    }
+
+    /** one whole record */
+    byte[] encode(BytesXMLMessage msg) {
+        JsonObject json = (JsonObject)UsefulUtils.solaceMsgToJson(msg);
+        if (this == NDJSON) {
+            return (json.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        for (Map.Entry<String,JsonValue> entry : json.entrySet()) {
+            if (!"payload".equals(entry.getKey())) job.add(entry.getKey(), entry.getValue());
+        }
+        byte[] header = job.build().toString().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = getPayloadBytes(msg);
+        ByteBuffer record = ByteBuffer.allocate(8 + header.length + payload.length);  // big-endian
+        record.putInt(header.length).put(header).putInt(payload.length).put(payload);
+        return record.array();
+    }
+
+    /**
+     * Back into a message to publish: the JSON headers of one record, plus the raw payload for LENGTH_PREFIXED
+     * (null for NDJSON, where it's in the JSON).  Comes back as a TextMessage or a BytesMessage; Map and Stream
+     * messages are replayed as a BytesMessage holding their encoded SDT, and no messageClass at all means text
+     * (e.g. a hand-written message for send()).  Broker-assigned stuff (message IDs,
+     * redelivered, delivery count, our restQ_deliveryCount) is dropped, and it's always PERSISTENT.
+     */
+    static BytesXMLMessage decode(JsonObject json, byte[] payload) throws SDTException {
+        final JCSMPFactory f = JCSMPFactory.onlyInstance();
+        BytesXMLMessage msg;
+        if ("TextMessage".equals(json.getString("messageClass", "TextMessage"))) {
+            TextMessage text = f.createMessage(TextMessage.class);
+            if (payload != null) {
+                text.setText(new String(payload, StandardCharsets.UTF_8));
+            } else if (json.get("payload") instanceof JsonString) {
+                text.setText(json.getString("payload"));
+            } else if (json.containsKey("payload") && json.get("payload") != JsonValue.NULL) {  // JSON text got parsed on the way out
+                text.setText(json.get("payload").toString());
+            }
+            msg = text;
+        } else {
+            BytesMessage bytesMsg = f.createMessage(BytesMessage.class);
+            bytesMsg.setData(payload != null ? payload : Base64.getDecoder().decode(json.getString("payload", "")));
+            msg = bytesMsg;
+        }
+        if (json.containsKey("applicationMessageId")) msg.setApplicationMessageId(json.getString("applicationMessageId"));
+        if (json.containsKey("applicationMessageType")) msg.setApplicationMessageType(json.getString("applicationMessageType"));
+        if (json.containsKey("correlationId")) msg.setCorrelationId(json.getString("correlationId"));
+        if (json.containsKey("httpContentType")) msg.setHTTPContentType(json.getString("httpContentType"));
+        if (json.containsKey("httpContentEncoding")) msg.setHTTPContentEncoding(json.getString("httpContentEncoding"));
+        if (json.containsKey("priority")) msg.setPriority(json.getInt("priority"));
+        if (json.containsKey("timeToLive")) msg.setTimeToLive(json.getJsonNumber("timeToLive").longValue());
+        msg.setDMQEligible(json.getBoolean("dmqEligible", false));
+        if (json.containsKey("properties")) {
+            SDTMap props = UsefulUtils.jsonToSdtMap(json.getJsonObject("properties"));
+            props.remove(UsefulUtils.RESTQ_DELIVERY_COUNT_PROP);  // it's a fresh start
+            msg.setProperties(props);
+        }
+        msg.setDeliveryMode(DeliveryMode.PERSISTENT);
+        return msg;
+    }
+
+    /** a batch of messages in one go: either a JSON array of them, or NDJSON */
+    static List<BytesXMLMessage> decodeAll(String text) throws SDTException {
+        List<BytesXMLMessage> msgs = new ArrayList<>();
+        if (text.trim().startsWith("[")) {
+            try (JsonReader reader = Json.createReader(new StringReader(text))) {
+                for (JsonValue value : reader.readArray()) {
+                    msgs.add(decode((JsonObject)value, null));  // ClassCastException if it's not an object
+                }
+            }
+        } else {
+            for (String line : text.split("\n")) {
+                if (line.trim().isEmpty()) continue;
+                try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                    msgs.add(decode(reader.readObject(), null));
+                }
+            }
+        }
+        return msgs;
+    }
+
+    static byte[] getPayloadBytes(BytesXMLMessage msg) {
+        if (msg instanceof TextMessage) {
+            String text = ((TextMessage)msg).getText();
+            return text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        } else if (msg instanceof BytesMessage) {
+            byte[] data = ((BytesMessage)msg).getData();
+            return data == null ? new byte[0] : data;
+        } else {  // map or stream, keep the encoded SDT as-is
+            ByteBuffer attachment = msg.getAttachmentByteBuffer();
+            if (attachment == null) return new byte[0];
+            attachment = attachment.duplicate();
+            byte[] data = new byte[attachment.remaining()];
+            attachment.get(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Reads an export file (see MessageFileFormat) back one record at a time, straight through, off a
+ * read-only memory-mapped window of the file that slides along as we go.  The window is remapped
+ * whenever a record doesn't fit in what's left of it, so records can be any size up to 2GB.
+ * Not thread-safe.
+ */
+final class MessageFileReader implements Closeable {
+
+    static final int WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final MessageFileFormat format;
+    private final long size;
+    private final int windowBytes;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long position = 0;  // of the next record in the file
+
+    MessageFileReader(Path file, MessageFileFormat format) throws IOException {
+        this(file, format, WINDOW_BYTES);
+    }
+
+    /** with a smaller window, so a test can have records straddle it without a huge file */
+    MessageFileReader(Path file, MessageFileFormat format, int windowBytes) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.format = format;
+        this.size = channel.size();
+        this.windowBytes = windowBytes;
+    }
+
+    /** how far through the file we are, in bytes */
+    long getPosition() {
+        return position;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /** the next message, or null at the end of the file */
+    BytesXMLMessage next() throws IOException, SDTException {
+        if (format == MessageFileFormat.NDJSON) {
+            byte[] line;
+            do {
+                if (position >= size) return null;
+                line = nextLine();
+            } while (line.length == 0);  // blank lines, e.g. at the end
+            return MessageFileFormat.decode(parse(line), null);
+        }
+        if (position >= size) return null;
+        byte[] header = read(readInt());
+        byte[] payload = read(readInt());
+        return MessageFileFormat.decode(parse(header), payload);
+    }
+
+    private static JsonObject parse(byte[] json) {
+        try (JsonReader reader = Json.createReader(new StringReader(new String(json, StandardCharsets.UTF_8)))) {
+            return reader.readObject();
+        }
+    }
+
+    /** up to the next newline (or the end of the file), without it */
+    private byte[] nextLine() throws IOException {
+        int len = (int)Math.min(windowBytes, size - position);
+        while (true) {
+            int start = map(position, len);
+            int end = start + len;
+            for (int i = start; i < end; i++) {
+                if (window.get(i) == '\n') {
+                    byte[] line = copy(start, i - start);
+                    position += line.length + 1;
+                    return line;
+                }
+            }
+            if (position + len >= size) {  // last line, no newline on it
+                byte[] line = copy(start, len);
+                position += len;
+                return line;
+            }
+            if (len == Integer.MAX_VALUE) throw new IOException("line at " + position + " is too long");
+            len = (int)Math.min(Math.min(2L * len, Integer.MAX_VALUE), size - position);  // a long one, map a bigger window
+        }
+    }
+
+    private int readInt() throws IOException {
+        int index = map(position, 4);  // first, it can swap the window out from under us
+        int i = window.getInt(index);  // big-endian by default, same as we wrote it
+        position += 4;
+        if (i < 0) throw new IOException("bad record length " + i + " at " + (position - 4));
+        return i;
+    }
+
+    private byte[] read(int len) throws IOException {
+        byte[] data = copy(map(position, len), len);
+        position += len;
+        return data;
+    }
+
+    private byte[] copy(int index, int len) {
+        byte[] data = new byte[len];
+        MappedByteBuffer view = window;
+        for (int i = 0; i < len; i++) {  // absolute gets, no position juggling
+            data[i] = view.get(index + i);
+        }
+        return data;
+    }
+
+    /** makes sure [pos, pos+len) is mapped, and returns where pos is in the window */
+    private int map(long pos, int len) throws IOException {
+        if (pos + len > size) throw new EOFException("truncated record at " + pos);
+        if (window == null || pos < windowStart || pos + len > windowStart + window.capacity()) {
+            long mapLen = Math.min(Math.max(windowBytes, len), size - pos);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapLen);
+            windowStart = pos;
+        }
+        return (int)(pos - windowStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;  // unmapped whenever it gets GC'd
+        channel.close();
+    }
+}
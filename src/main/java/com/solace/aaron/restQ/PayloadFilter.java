@@ -0,0 +1,401 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.TextMessage;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+
+/**
+ * A bind-time filter= on the JSON payload, for what broker selectors can't see.  Compiled once per flow from a
+ * small expression language:
+ * <pre>
+ *   $.status == 'NEW' &amp;&amp; ($.order.total &gt;= 100 || !$.priority) &amp;&amp; $.items[0].sku != null
+ * </pre>
+ * Paths are $ then .name, ["name"] or [index]; comparisons are == != &lt; &lt;= &gt; &gt;= against a string, number,
+ * true, false or null; a path on its own means "is there".  Matching streams through the payload with a JsonParser,
+ * only remembering the values of the paths in the expression, skipping subtrees none of them are in, and stopping
+ * as soon as it has them all.  A payload that isn't JSON never matches.  Thread-safe once compiled.
+ */
+final class PayloadFilter {
+
+    private static final Object STRUCTURE = new Object();  // the path is an object or array, so it's there but isn't a value
+    private static final Object NULL = new Object();       // JSON null, which isn't the same as not there
+
+    private final String source;
+    private final Node root;
+    private final Map<String,Integer> paths = new HashMap<>();  // normalized path -> its slot in the values array
+    private final Set<String> prefixes = new HashSet<>();       // every path that leads to one of them, to know what to skip
+
+    private PayloadFilter(String source) {
+        this.source = source;
+        this.root = new ExpressionParser(source).parse();
+        for (String path : paths.keySet()) {
+            for (int i = 0; i < path.length(); i++) {  // not the whole path, once we have that we don't need inside it
+                if (path.charAt(i) == KEY || path.charAt(i) == INDEX) prefixes.add(path.substring(0, i));
+            }
+        }
+    }
+
+    /** null if there's no filter= */
+    static PayloadFilter compile(String expression) throws IllegalArgumentException {
+        return expression == null ? null : new PayloadFilter(expression);
+    }
+
+    boolean matches(BytesXMLMessage msg) {
+        try {
+            if (msg instanceof TextMessage) {
+                String text = ((TextMessage)msg).getText();
+                return text != null && matches(Json.createParser(new StringReader(text)));
+            }
+            return matches(Json.createParser(new ByteArrayInputStream(MessageFileFormat.getPayloadBytes(msg))));  // figures out the UTF
+        } catch (JsonException e) {  // not JSON
+            return false;
+        }
+    }
+
+    boolean matches(String json) {
+        try {
+            return matches(Json.createParser(new StringReader(json)));
+        } catch (JsonException e) {
+            return false;
+        }
+    }
+
+    private boolean matches(JsonParser parser) throws JsonException {
+        try {
+            return root.eval(capture(parser));
+        } finally {
+            parser.close();
+        }
+    }
+
+    // path segments, normalized: a marker char and then the key or the index
+    private static final char KEY = '\u0001';
+    private static final char INDEX = '\u0002';
+
+    /** one open object or array on the way down */
+    private static final class Frame {
+        final int pathLength;  // of the path up to this object/array
+        final boolean array;
+        int index = 0;         // arrays: of the next element
+        String key = null;     // objects: of the next value
+
+        Frame(int pathLength, boolean array) {
+            this.pathLength = pathLength;
+            this.array = array;
+        }
+    }
+
+    private Object[] capture(JsonParser parser) {
+        final Object[] values = new Object[paths.size()];  // null for not there
+        int found = 0;
+        final List<Frame> stack = new ArrayList<>();
+        final StringBuilder path = new StringBuilder();
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.KEY_NAME) {
+                stack.get(stack.size() - 1).key = parser.getString();
+                continue;
+            }
+            if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) {
+                Frame done = stack.remove(stack.size() - 1);
+                path.setLength(done.pathLength);
+                continue;
+            }
+            // a value: where is it?
+            path.setLength(stack.isEmpty() ? 0 : stack.get(stack.size() - 1).pathLength);
+            if (!stack.isEmpty()) {
+                Frame parent = stack.get(stack.size() - 1);
+                if (parent.array) path.append(INDEX).append(parent.index++);
+                else path.append(KEY).append(parent.key);
+            }
+            String here = path.toString();
+            Integer slot = paths.get(here);
+            Object value;
+            switch (event) {
+            case START_OBJECT:
+            case START_ARRAY:
+                value = STRUCTURE;
+                break;
+            case VALUE_STRING:
+                value = parser.getString();
+                break;
+            case VALUE_NUMBER:
+                value = parser.getBigDecimal();
+                break;
+            case VALUE_TRUE:
+                value = Boolean.TRUE;
+                break;
+            case VALUE_FALSE:
+                value = Boolean.FALSE;
+                break;
+            default:
+                value = NULL;
+                break;
+            }
+            if (slot != null && values[slot] == null) {
+                values[slot] = value;
+                if (++found == values.length) return values;  // got everything we need, don't read the rest
+            }
+            if (value == STRUCTURE) {
+                if (!prefixes.contains(here)) {  // nothing we want in there
+                    if (event == JsonParser.Event.START_OBJECT) parser.skipObject();
+                    else parser.skipArray();
+                } else {
+                    stack.add(new Frame(path.length(), event == JsonParser.Event.START_ARRAY));
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /////////////////////////////////////////////////
+    // THE EXPRESSION TREE
+
+    private interface Node {
+        boolean eval(Object[] values);
+    }
+
+    private enum Op { EQ, NE, LT, LE, GT, GE, }
+
+    private static final class Exists implements Node {
+        final int slot;
+
+        Exists(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean eval(Object[] values) {
+            return values[slot] != null && values[slot] != NULL;
+        }
+    }
+
+    private static final class Compare implements Node {
+        final int slot;
+        final Op op;
+        final Object literal;  // String, BigDecimal, Boolean or NULL
+
+        Compare(int slot, Op op, Object literal) {
+            this.slot = slot;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        @Override
+        public boolean eval(Object[] values) {
+            final Object value = values[slot];
+            if (value == null || value == STRUCTURE) return op == Op.NE;  // not there, or not a value: only "not equal" holds
+            final int cmp;
+            if (value instanceof BigDecimal && literal instanceof BigDecimal) {
+                cmp = ((BigDecimal)value).compareTo((BigDecimal)literal);
+            } else if (value instanceof String && literal instanceof String) {
+                cmp = ((String)value).compareTo((String)literal);
+            } else if (value.equals(literal)) {  // booleans, or both null
+                cmp = 0;
+            } else {  // different types, or booleans that aren't equal: can't be ordered
+                return op == Op.NE;
+            }
+            switch (op) {
+            case EQ: return cmp == 0;
+            case NE: return cmp != 0;
+            case LT: return cmp < 0;
+            case LE: return cmp <= 0;
+            case GT: return cmp > 0;
+            default: return cmp >= 0;
+            }
+        }
+    }
+
+    private static final class Not implements Node {
+        final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean eval(Object[] values) {
+            return !node.eval(values);
+        }
+    }
+
+    private static final class Junction implements Node {
+        final boolean and;
+        final List<Node> nodes;
+
+        Junction(boolean and, List<Node> nodes) {
+            this.and = and;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public boolean eval(Object[] values) {
+            for (Node node : nodes) {
+                if (node.eval(values) != and) return !and;  // short circuit
+            }
+            return and;
+        }
+    }
+
+    /////////////////////////////////////////////////
+    // THE PARSER: recursive descent, or := and ('||' and)*, and := unary ('&&' unary)*, unary := '!' unary | primary
+
+    private final class ExpressionParser {
+
+        private final String s;
+        private int pos = 0;
+
+        ExpressionParser(String s) {
+            this.s = s;
+        }
+
+        Node parse() {
+            Node node = parseOr();
+            skipSpace();
+            if (pos < s.length()) throw error("unexpected '" + s.charAt(pos) + "'");
+            return node;
+        }
+
+        private IllegalArgumentException error(String what) {
+            return new IllegalArgumentException("bad filter at position " + pos + ": " + what);
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private boolean accept(String token) {
+            skipSpace();
+            if (s.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private Node parseOr() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseAnd());
+            while (accept("||")) nodes.add(parseAnd());
+            return nodes.size() == 1 ? nodes.get(0) : new Junction(false, nodes);
+        }
+
+        private Node parseAnd() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseUnary());
+            while (accept("&&")) nodes.add(parseUnary());
+            return nodes.size() == 1 ? nodes.get(0) : new Junction(true, nodes);
+        }
+
+        private Node parseUnary() {
+            if (accept("!")) {
+                if (s.startsWith("=", pos)) throw error("'!=' needs a path before it");
+                return new Not(parseUnary());
+            }
+            if (accept("(")) {
+                Node node = parseOr();
+                if (!accept(")")) throw error("missing ')'");
+                return node;
+            }
+            int slot = parsePath();
+            Op op = parseOp();
+            return op == null ? new Exists(slot) : new Compare(slot, op, parseLiteral());
+        }
+
+        private Op parseOp() {
+            if (accept("==")) return Op.EQ;
+            if (accept("!=")) return Op.NE;
+            if (accept("<=")) return Op.LE;
+            if (accept(">=")) return Op.GE;
+            if (accept("<")) return Op.LT;
+            if (accept(">")) return Op.GT;
+            return null;
+        }
+
+        /** the path's slot, shared if the same path is in there twice */
+        private int parsePath() {
+            skipSpace();
+            if (pos >= s.length() || s.charAt(pos) != '$') throw error("expected a path starting with $");
+            pos++;
+            StringBuilder path = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '.') {
+                    pos++;
+                    int start = pos;
+                    while (pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_' || s.charAt(pos) == '-')) pos++;
+                    if (pos == start) throw error("expected a name after '.'");
+                    path.append(KEY).append(s, start, pos);
+                } else if (c == '[') {
+                    pos++;
+                    skipSpace();
+                    if (pos < s.length() && (s.charAt(pos) == '"' || s.charAt(pos) == '\'')) {
+                        path.append(KEY).append(parseString());
+                    } else {
+                        int start = pos;
+                        while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+                        if (pos == start) throw error("expected an index or a quoted name in []");
+                        path.append(INDEX).append(Integer.parseInt(s.substring(start, pos)));
+                    }
+                    if (!accept("]")) throw error("missing ']'");
+                } else {
+                    break;
+                }
+            }
+            String normalized = path.toString();
+            Integer slot = paths.get(normalized);
+            if (slot == null) {
+                slot = paths.size();
+                paths.put(normalized, slot);
+            }
+            return slot;
+        }
+
+        private Object parseLiteral() {
+            skipSpace();
+            if (pos >= s.length()) throw error("expected a value");
+            char c = s.charAt(pos);
+            if (c == '"' || c == '\'') return parseString();
+            if (accept("true")) return Boolean.TRUE;
+            if (accept("false")) return Boolean.FALSE;
+            if (accept("null")) return NULL;
+            int start = pos;
+            while (pos < s.length() && "+-.eE0123456789".indexOf(s.charAt(pos)) >= 0) pos++;
+            try {
+                return new BigDecimal(s.substring(start, pos));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("expected a string, number, true, false or null");
+            }
+        }
+
+        private String parseString() {
+            final char quote = s.charAt(pos++);
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length() && s.charAt(pos) != quote) {
+                char c = s.charAt(pos++);
+                if (c == '\\' && pos < s.length()) c = s.charAt(pos++);  // \' \" \\, nothing fancier
+                sb.append(c);
+            }
+            if (pos >= s.length()) throw error("unterminated string");
+            pos++;
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+
+/**
+ * One polled flow's idea of how busy its queue is: a moving average of the gap between messages, and how many
+ * recvs in a row have come back empty.  From that it works out how long the next recv should wait on the broker
+ * (less and less as the queue stays empty, no point tying up a receive on nothing) and how long to tell the
+ * client to leave it before polling again (more and more, but no longer than messages usually take to turn up).
+ * Not thread-safe; the flow calls it under its receive lock.
+ */
+final class PollPacer {
+
+    private static final double GAP_WEIGHT = 0.2;  // how much each new gap moves the average
+    private static final int MAX_SHIFT = 16;       // so the backoff doubling can't overflow
+
+    private long lastArrivalMs = -1;
+    private double meanGapMs = -1;  // unknown until we've seen two messages
+    private int emptyStreak = 0;
+
+    void onMessage(long nowMs) {
+        if (lastArrivalMs >= 0) {
+            long gap = nowMs - lastArrivalMs;
+            meanGapMs = meanGapMs < 0 ? gap : (1 - GAP_WEIGHT) * meanGapMs + GAP_WEIGHT * gap;
+        }
+        lastArrivalMs = nowMs;
+        emptyStreak = 0;
+    }
+
+    void onEmpty() {
+        emptyStreak++;
+    }
+
+    int getEmptyStreak() {
+        return emptyStreak;
+    }
+
+    /** -1 until there have been two messages */
+    double getMeanGapMs() {
+        return meanGapMs;
+    }
+
+    /** the usual gap between messages, or -1 if we don't know or it's out of date (nothing for a good while) */
+    private double recentGapMs(long nowMs) {
+        if (meanGapMs < 0 || nowMs - lastArrivalMs > 4 * meanGapMs) return -1;
+        return meanGapMs;
+    }
+
+    /** how long the next receive should wait for a message */
+    int getReceiveWaitMs(long nowMs) {
+        long wait = RestQProps.getInt(Props.FLOW_RECEIVE_MESSAGE_TIMEOUT_MS) >> Math.min(emptyStreak, MAX_SHIFT);
+        double gap = recentGapMs(nowMs);
+        if (gap >= 0) wait = Math.min(wait, (long)(2 * gap) + 1);  // busy queue, one'll be along any second
+        return (int)Math.max(RestQProps.getInt(Props.POLL_MIN_RECEIVE_WAIT_MS), wait);
+    }
+
+    /** after an empty recv: how long the client should wait before polling again */
+    long getNextPollMs(long nowMs) {
+        if (emptyStreak == 0) return 0;
+        final int minBackoff = RestQProps.getInt(Props.POLL_MIN_BACKOFF_MS);
+        long backoff = Math.min(RestQProps.getInt(Props.POLL_MAX_BACKOFF_MS), (long)minBackoff << Math.min(emptyStreak - 1, MAX_SHIFT));
+        double gap = recentGapMs(nowMs);
+        if (gap >= 0) backoff = Math.min(backoff, Math.max(minBackoff, (long)gap));  // only briefly empty
+        return backoff;
+    }
+}
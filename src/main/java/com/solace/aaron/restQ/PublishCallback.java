@@ -0,0 +1,15 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.JCSMPException;
+
+/**
+ * Set as the correlation key on a Guaranteed (persistent) publish.  The producer's event handler calls
+ * back into it once the broker has, or hasn't, spooled the message.  Called on the JCSMP context
+ * thread, so don't block in here.
+ */
+interface PublishCallback {
+
+    void onPublished();
+    
+    void onPublishFailed(JCSMPException cause);
+}
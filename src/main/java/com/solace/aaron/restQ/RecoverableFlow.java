@@ -0,0 +1,103 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import com.solacesystems.jcsmp.JCSMPException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The recovery state machine that consumer and browser flows share: a FLOW_DOWN on the current JCSMP flow starts
+ * a FlowRecoveryTask, requests park in awaitRecovery() while it runs, and a close() (timeout, unbind, gave up
+ * recovering) wins over all of it.  Subclasses just say how to tear down and re-create their JCSMP flow(s).
+ */
+abstract class RecoverableFlow implements Flow {
+
+    private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
+
+    private final ReentrantLock recoveryLock = new ReentrantLock();
+    private final Condition recovered = recoveryLock.newCondition();  // signalled when recovering goes false
+    private volatile boolean recovering = false;
+    private volatile boolean closed = false;            // closed on purpose (timeout, unbind, gave up recovering), so don't recover
+
+    /** close the JCSMP flow(s) underneath for good */
+    abstract void closeUnderlying();
+
+    /** close and re-create the JCSMP flow(s) underneath; the unacked messages have already been invalidated */
+    abstract void reopen() throws JCSMPException;
+
+    /** from a FlowEventHandler, for a FLOW_DOWN on the JCSMP flow currently in use (not a stale one we've already replaced) */
+    void onFlowDown() {
+        recoveryLock.lock();
+        try {
+            if (closed || recovering) return;  // don't recover twice
+            recovering = true;  // start queuing requests right away
+        } finally {
+            recoveryLock.unlock();
+        }
+        FlowManager.recoveryPool.submit(new FlowRecoveryTask(this, 1));  // don't block the JCSMP context thread
+    }
+
+    @Override
+    public final boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public final boolean isRecovering() {
+        return recovering;
+    }
+
+    @Override
+    public final void close() {
+        recoveryLock.lock();
+        try {
+            closed = true;
+            recovering = false;
+            recovered.signalAll();  // release anybody waiting on a recovery that won't happen now
+        } finally {
+            recoveryLock.unlock();
+        }
+        closeUnderlying();
+    }
+
+    @Override
+    public final void recover() throws JCSMPException {
+        recoveryLock.lock();
+        try {
+            if (closed) return;
+            recovering = true;
+        } finally {
+            recoveryLock.unlock();
+        }
+        invalidateUnacked();  // these belonged to the dead flow
+        reopen();             // if this throws, stay in recovering state and let the task retry
+        recoveryLock.lock();
+        try {
+            recovering = false;
+            recovered.signalAll();
+        } finally {
+            recoveryLock.unlock();
+        }
+        logger.info("Recovered flow {} on {}", getFlowId(), getQueueName());
+    }
+
+    /** park the caller for a bit rather than fail it straight away; true if we're good to go */
+    boolean awaitRecovery() {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(RestQProps.getInt(Props.FLOW_RECOVERY_WAIT_MS));
+        recoveryLock.lock();  // not a monitor, so a virtual thread waiting here doesn't pin its carrier
+        try {
+            while (recovering && remaining > 0) {
+                remaining = recovered.awaitNanos(remaining);
+            }
+            return !recovering;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            recoveryLock.unlock();
+        }
+    }
+}
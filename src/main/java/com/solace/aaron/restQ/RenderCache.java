@@ -0,0 +1,102 @@
+package com.solace.aaron.restQ;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The rendered text of held messages, per format, so a getMsg (or a recv replayed after a client crash) doesn't
+ * have to turn the same message into JSON all over again.  One LRU across every flow, bounded by a memory budget;
+ * entries are dropped as soon as their message is ACKed, released or invalidated.
+ */
+final class RenderCache {
+
+    private static final String[] FORMATS = { "json", "pretty", "dump" };  // see UsefulUtils.formatResponseMessage()
+
+    private long budgetBytes;
+    private long usedBytes = 0;
+    private final LinkedHashMap<Key,String> cache = new LinkedHashMap<>(16, 0.75f, true);  // access order, for LRU
+
+    /** by identity: every UnackedMessage is its own entry, whichever flow it's on */
+    private static final class Key {
+        final UnackedMessage unacked;
+        final String format;
+
+        Key(UnackedMessage unacked, String format) {
+            this.unacked = unacked;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return unacked == other.unacked && format.equals(other.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(unacked) * 31 + format.hashCode();
+        }
+    }
+
+    RenderCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    private static String normalize(String format) {
+        return "pretty".equals(format) || "dump".equals(format) ? format : "json";  // anything else is the default
+    }
+
+    private static long sizeOf(String text) {
+        return 2L * text.length() + 64;  // chars plus a rough guess at the overhead
+    }
+
+    synchronized String get(UnackedMessage unacked, String format) {
+        return cache.get(new Key(unacked, normalize(format)));
+    }
+
+    synchronized void put(UnackedMessage unacked, String format, String text) {
+        final long size = sizeOf(text);
+        if (size > budgetBytes / 8) return;  // a few huge ones would just push everything else out
+        String previous = cache.put(new Key(unacked, normalize(format)), text);
+        if (previous != null) usedBytes -= sizeOf(previous);
+        usedBytes += size;
+        Iterator<String> it = cache.values().iterator();  // eldest first
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            usedBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    /** the message isn't held any more */
+    synchronized void remove(UnackedMessage unacked) {
+        if (cache.isEmpty()) return;
+        for (String format : FORMATS) {
+            String previous = cache.remove(new Key(unacked, format));
+            if (previous != null) usedBytes -= sizeOf(previous);
+        }
+    }
+
+    /** a new budget, e.g. after a config reload; if it's smaller, the oldest entries go now */
+    synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        Iterator<String> it = cache.values().iterator();  // eldest first
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            usedBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d rendered, %d of %d bytes", cache.size(), usedBytes, budgetBytes);
+    }
+}
@@ -0,0 +1,143 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers the successful replies to requests that change something (recv, ack, etc.), so that when the
+ * gateway or the client retries one that timed out, it gets the same answer again instead of, say, a second
+ * message while the first one sits unacked.  Keyed on the request's topic plus the client's Idempotency-Key
+ * header if it sent one, or the request's correlation ID otherwise.  Bounded LRU, and entries expire.
+ * <p>
+ * A retry can also turn up while the original is still being handled, so a request claim()s its key first, and
+ * a twin that finds it claimed waits for the first one to finish rather than doing it again alongside.
+ */
+final class ReplyCache {
+
+    static final int TTL_SEC = 60;  // comfortably longer than any gateway or client retry
+    static final String IDEMPOTENCY_KEY_HEADER = "JMS_Solace_HTTP_field_Idempotency-Key";
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Map<String,CachedReply> cache;
+    private final Map<String,Claim> inFlight = new HashMap<>();
+
+    private static class CachedReply {
+        final BytesXMLMessage reply;
+        final long expiresAtMs;
+
+        CachedReply(BytesXMLMessage reply, long expiresAtMs) {
+            this.reply = reply;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /** a key being handled right now, by this request */
+    private static class Claim {
+        final Object request;
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+        Claim(Object request) {
+            this.request = request;
+        }
+    }
+
+    ReplyCache() {
+        this(RestQProps.getInt(Props.REPLY_CACHE_MAX_ENTRIES), TTL_SEC);
+    }
+
+    ReplyCache(int maxEntries, int ttlSec) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlSec * 1000L;
+        this.cache = new LinkedHashMap<String,CachedReply>(16, 0.75f, true) {  // access order, for LRU
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CachedReply> eldest) {
+                return size() > ReplyCache.this.maxEntries;
+            }
+        };
+    }
+
+    /** what a retry of this request would look like; null if there's nothing to key it on */
+    static String keyFor(String topic, BytesXMLMessage request) {
+        String key = null;
+        SDTMap props = request.getProperties();
+        try {
+            if (props != null && props.containsKey(IDEMPOTENCY_KEY_HEADER)) key = props.getString(IDEMPOTENCY_KEY_HEADER);
+        } catch (SDTException e) { }  // ignore, fall back to the correlation ID
+        if (key == null || key.isEmpty()) key = request.getCorrelationId();
+        return key == null ? null : topic + ' ' + key;
+    }
+
+    /**
+     * Before handling a request: a copy of the reply to replay if it's already been answered, otherwise null and
+     * the caller (the request) now has the key, and must done() it once it's replied.  If another request has the
+     * key, this waits up to waitMs for it to finish, then replays its reply, or takes the key over if it failed.
+     * @throws TimeoutException if the other one is still going after waitMs
+     */
+    BytesXMLMessage claim(String key, Object request, long waitMs) throws TimeoutException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        while (true) {
+            Claim other;
+            synchronized (this) {
+                BytesXMLMessage cached = get(key);
+                if (cached != null) return cached;
+                other = inFlight.get(key);
+                if (other == null) {
+                    inFlight.put(key, new Claim(request));
+                    return null;
+                }
+            }
+            try {
+                other.finished.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {  // it's never completed exceptionally
+                throw new AssertionError(e);
+            }
+        }  // round again: either its reply is cached now, or it failed and the key is up for grabs
+    }
+
+    /** the request that claim()ed this key has replied, or given up; a no-op for anybody else */
+    void done(String key, Object request) {
+        Claim claim;
+        synchronized (this) {
+            claim = inFlight.get(key);
+            if (claim == null || claim.request != request) return;
+            inFlight.remove(key);
+        }
+        claim.finished.complete(null);  // no need to hold the lock while waking the waiters
+    }
+
+    synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    synchronized void put(String key, BytesXMLMessage reply) {
+        cache.put(key, new CachedReply(reply, System.currentTimeMillis() + ttlMs));
+    }
+
+    /** a fresh copy of the cached reply to send again, or null */
+    synchronized BytesXMLMessage get(String key) {
+        CachedReply entry = cache.get(key);
+        if (entry == null) return null;
+        if (System.currentTimeMillis() >= entry.expiresAtMs) {
+            cache.remove(key);
+            return null;
+        }
+        return JCSMPFactory.onlyInstance().createMessage(entry.reply);  // sendReply() stamps the reply, so don't reuse it
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+}
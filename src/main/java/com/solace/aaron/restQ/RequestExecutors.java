@@ -0,0 +1,41 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Where requests get handled, off the JCSMP dispatcher thread, since most of them block on the broker somewhere
+ * (a recv waiting for a message, a browse, creating a flow).  On a JDK with virtual threads that's a virtual thread
+ * per request, so lots of long-polling recvs cost next to nothing (see VirtualThreads); on anything older it's a
+ * fixed-size pool of platform threads.  Either way AdmissionControl's
+ * concurrency cap is what bounds how much is queued up or running.
+ */
+final class RequestExecutors {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private RequestExecutors() {
+        throw new AssertionError("utility class");
+    }
+
+    static ExecutorService newRequestExecutor(String name) {
+        if (RestQProps.getBoolean(Props.REQUEST_VIRTUAL_THREADS)) {
+            ExecutorService virtual = VirtualThreads.newExecutor(name);
+            if (virtual != null) {
+                logger.info("Handling requests on virtual threads");
+                return virtual;
+            }
+        }
+        final int poolSize = Math.max(1, RestQProps.getInt(Props.REQUEST_PLATFORM_POOL_SIZE));  // most requests we'll block on the broker at once
+        logger.info("Handling requests on a pool of {} platform threads", poolSize);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);  // don't sit on lots of idle threads
+        return pool;
+    }
+}
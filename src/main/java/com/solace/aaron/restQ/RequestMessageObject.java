@@ -10,7 +10,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 
 /**
  * Convenience/helper class to store a representation of a received JCSMP Message via the REST
@@ -22,7 +21,6 @@ class RequestMessageObject {
         
     final String resourceName;
     final BytesXMLMessage requestMessage;
-    final String uuid = UUID.randomUUID().toString();
     final Map<String, List<String>> requestParams;
     final String payloadString;
     
@@ -91,7 +89,6 @@ class RequestMessageObject {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("resourceName:  %s%n",resourceName));
-        sb.append(String.format("uuid:          %s%n",uuid));
         sb.append(String.format("requestParams: %s%n",requestParams.toString()));
         sb.append(String.format("payload:       %s%n",payloadString));
         //sb.append(requestMessage.dump());
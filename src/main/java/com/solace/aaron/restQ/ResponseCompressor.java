@@ -0,0 +1,162 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses reply bodies when the client's Accept-Encoding allows it and they're big enough to be worth it
+ * (JSON, especially pretty-printed, shrinks a lot).  Deflaters hold a good chunk of native memory each, so
+ * they're pooled rather than made per reply; gzip is done by hand around a raw Deflater for the same reason,
+ * since GZIPOutputStream always makes its own.
+ */
+final class ResponseCompressor {
+
+    static final int POOL_SIZE = 16;         // per encoding, about the most replies going out at once
+    static final String ACCEPT_ENCODING_HEADER = "JMS_Solace_HTTP_field_Accept-Encoding";
+    static final String VARY_HEADER = "JMS_Solace_HTTP_field_Vary";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    enum Encoding {
+        GZIP("gzip", true),        // raw deflate inside a gzip header + CRC32/length trailer
+        DEFLATE("deflate", false), // zlib-wrapped, which is what HTTP means by deflate
+        ;
+
+        final String token;
+        private final boolean nowrap;
+        private final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        Encoding(String token, boolean nowrap) {
+            this.token = token;
+            this.nowrap = nowrap;
+        }
+
+        private Deflater borrow() {
+            Deflater deflater = pool.poll();
+            return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        }
+
+        private void giveBack(Deflater deflater) {
+            deflater.reset();
+            if (!pool.offer(deflater)) deflater.end();  // pool's full, free the native memory now
+        }
+    }
+
+    private ResponseCompressor() {
+        throw new AssertionError("utility class");
+    }
+
+    /**
+     * gzip if it's allowed, else deflate, else null; honours q=0, ignores the other q-values.  As in RFC 7231
+     * 5.3.4, a * only stands for the codings that aren't listed, so "gzip;q=0, *" still means no gzip.
+     */
+    static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        Boolean gzip = null;     // null if it isn't listed, else whether it's acceptable
+        Boolean deflate = null;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            String coding = tokens[0].trim().toLowerCase();
+            boolean refused = false;
+            for (int i = 1; i < tokens.length; i++) {
+                String param = tokens[i].trim().toLowerCase();  // Q=0 is just as much a no
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) gzip = !refused || Boolean.TRUE.equals(gzip);
+            else if ("deflate".equals(coding)) deflate = !refused || Boolean.TRUE.equals(deflate);
+            else if ("*".equals(coding)) any = !refused;
+        }
+        if (gzip != null ? gzip : any) return Encoding.GZIP;
+        return (deflate != null ? deflate : any) ? Encoding.DEFLATE : null;
+    }
+
+    static byte[] compress(byte[] data, Encoding encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        if (encoding == Encoding.GZIP) {  // 10 byte header: magic, CM=deflate, no flags, no mtime, XFL=0, OS=unknown
+            out.write(GZIP_MAGIC & 0xff);
+            out.write(GZIP_MAGIC >> 8);
+            out.write(Deflater.DEFLATED);
+            for (int i = 0; i < 6; i++) out.write(0);
+            out.write(0xff);
+        }
+        Deflater deflater = encoding.borrow();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            encoding.giveBack(deflater);
+        }
+        if (encoding == Encoding.GZIP) {  // trailer, little-endian
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            writeIntLE(out, (int)crc.getValue());
+            writeIntLE(out, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int i) {
+        out.write(i);
+        out.write(i >> 8);
+        out.write(i >> 16);
+        out.write(i >> 24);
+    }
+
+    /**
+     * The reply as it should go out for this request: a compressed copy (same status, headers and content
+     * type) if the client accepts it and it's worth it, otherwise the reply itself, untouched.
+     */
+    static BytesXMLMessage compressReply(BytesXMLMessage request, BytesXMLMessage reply) {
+        if (reply.getHTTPContentEncoding() != null) return reply;  // already encoded somehow, leave it alone
+        Encoding encoding;
+        try {
+            SDTMap props = request.getProperties();
+            encoding = props == null || !props.containsKey(ACCEPT_ENCODING_HEADER) ? null : negotiate(props.getString(ACCEPT_ENCODING_HEADER));
+        } catch (SDTException e) {
+            encoding = null;
+        }
+        if (encoding == null) return reply;
+        byte[] body = MessageFileFormat.getPayloadBytes(reply);
+        if (body.length < RestQProps.getInt(Props.COMPRESS_MIN_BYTES)) return reply;  // smaller isn't worth the CPU
+        byte[] compressed = compress(body, encoding);
+        if (compressed.length >= body.length) return reply;  // random-looking payloads, say
+        BytesMessage out = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+        out.setData(compressed);
+        out.setHTTPContentType(reply.getHTTPContentType());
+        out.setHTTPContentEncoding(encoding.token);  // the gateway turns this into Content-Encoding
+        try {
+            SDTMap props = JCSMPFactory.onlyInstance().createMap();
+            if (reply.getProperties() != null) {
+                for (String key : reply.getProperties().keySet()) {  // status code, reason, other headers
+                    props.putObject(key, reply.getProperties().get(key));
+                }
+            }
+            props.putString(VARY_HEADER, "Accept-Encoding");
+            out.setProperties(props);
+        } catch (SDTException e) {  // can't copy the status code over, so don't risk it
+            return reply;
+        }
+        return out;
+    }
+}
@@ -1,20 +1,285 @@
 package com.solace.aaron.restQ;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+/**
+ * The tunables, and where they come from: the defaults here, then restQ.properties (or whatever -Drestq.config or
+ * RESTQ_CONFIG points at), then RESTQ_&lt;NAME&gt; environment variables, then -Drestq.&lt;key&gt; system properties, each
+ * overriding the one before.  The file is re-read whenever it changes, and the knobs marked reloadable take the new
+ * value straight away (or on the next flow, request, etc. that uses them); the rest only change on a restart.
+ * Values are parsed once per load, so reading one on a hot path is just an array lookup.
+ */
 public class RestQProps extends Properties {
 
     private static final long serialVersionUID = 1L;
 
+    static final String CONFIG_FILE_PROPERTY = "restq.config";
+    static final String CONFIG_FILE_ENV = "RESTQ_CONFIG";
+    static final String DEFAULT_CONFIG_FILE = "restQ.properties";  // in the working dir, if it's there
+    static final String SYSTEM_PROPERTY_PREFIX = "restq.";
+    static final String ENV_PREFIX = "RESTQ_";
+    static final int RELOAD_CHECK_INTERVAL_SEC = 5;
+
+    private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
+
+    enum Kind { INT, BOOLEAN, STRING }
+
     public enum Props {
-        BIND_URL("POST/restQ/bind"),
+        // flows
+        FLOW_INACTIVITY_TIMEOUT_SEC("flow.inactivityTimeoutSec", "120", 1, 86_400, true),   // if this doesn't get an ACK or nextMsg in this time, we'll close the flow
+        FLOW_TRANSPORT_WINDOW_SIZE("flow.transportWindowSize", "1", 1, 255, true),          // new flows
+        FLOW_RECEIVE_MESSAGE_TIMEOUT_MS("flow.receiveTimeoutMs", "500", 1, 60_000, true),   // longest a recv waits on the broker
+        FLOW_PUSH_DEFAULT_WINDOW("flow.pushDefaultWindow", "16", 1, 255, true),             // new push flows that don't say
+        FLOW_PUSH_MAX_WINDOW("flow.pushMaxWindow", "255", 1, 255, true),                    // biggest pushWindow a bind can ask for; 255 is all JCSMP allows anyway
+        MAX_FAN_IN_QUEUES("flow.maxFanInQueues", "64", 1, 1000, true),                      // most queues one flowId can be bound across
+        FILTER_MAX_SKIPS_PER_RECEIVE("filter.maxSkipsPerReceive", "1000", 1, 1_000_000, true),  // filtered-out messages dealt with in one recv before giving up with a 404
+        VISIBILITY_MAX_SEC("visibility.maxSec", "3600", 1, 86_400 * 7, true),               // longest visibility timeout a client can ask for
+        VISIBILITY_SWEEP_INTERVAL_MS("visibility.sweepIntervalMs", "1000", 10, 60_000, false),  // how often we look for unacked messages whose visibility timeout is up
+        UNACKED_PAGE_DEFAULT_LIMIT("unacked.pageDefaultLimit", "1000", 1, 1_000_000, true),  // how many msgIds GET /restQ/unacked returns at once
+        UNACKED_PAGE_MAX_LIMIT("unacked.pageMaxLimit", "10000", 1, 1_000_000, true),
+        FLOW_MAX_PER_QUEUE("flow.maxPerQueue", "8", 1, 1000, true),                         // binds, browses and exports at once per queue; checked on each new one
+        FLOW_RECOVERY_WAIT_MS("flow.recoveryWaitMs", "2000", 0, 60_000, true),              // how long a recv will queue up behind an in-progress flow recovery
+        FLOW_RECOVERY_MAX_ATTEMPTS("flow.recoveryMaxAttempts", "10", 1, 1000, true),        // give up and close the flow after this many failed re-binds
+        FLOW_RECOVERY_RETRY_INTERVAL_MS("flow.recoveryRetryIntervalMs", "1000", 1, 600_000, true),  // multiplied by the attempt number, so a linear backoff
+        BROWSE_RETAINED_WINDOW("browse.retainedWindow", "1000", 1, 1_000_000, true),        // browsed messages kept for getMsg and cursors, oldest dropped first
+        BROWSE_TRANSPORT_WINDOW_SIZE("browse.transportWindowSize", "255", 1, 255, true),    // new browsers; a browse pages through lots, so let the broker stream ahead
+        BROWSE_PAGE_MAX_LIMIT("browse.pageMaxLimit", "500", 1, 100_000, true),              // most messages in one browse reply
+        BROWSE_DELETE_LOG_EVERY("browse.deleteLogEvery", "100", 1, Integer.MAX_VALUE, true),  // browse-and-delete removes one at a time, and logs its progress every this many
+        POLL_MIN_RECEIVE_WAIT_MS("poll.minReceiveWaitMs", "50", 0, 60_000, true),           // see PollPacer
+        POLL_MIN_BACKOFF_MS("poll.minBackoffMs", "250", 0, 600_000, true),
+        POLL_MAX_BACKOFF_MS("poll.maxBackoffMs", "10000", 0, 600_000, true),
+        // admission control
+        FLOW_RATE_PER_SEC("admission.flowRatePerSec", "50", 0, 1_000_000, true),            // 0 for no limit
+        FLOW_BURST("admission.flowBurst", "100", 1, 1_000_000, true),
+        USER_RATE_PER_SEC("admission.userRatePerSec", "200", 0, 1_000_000, true),
+        USER_BURST("admission.userBurst", "400", 1, 1_000_000, true),
+        MAX_CONCURRENT_REQUESTS("admission.maxConcurrentRequests", "256", 1, 100_000, true),  // shrinking it lets the requests already in finish
+        // threads
+        REQUEST_VIRTUAL_THREADS("threads.virtual", Kind.BOOLEAN, "true", false),              // false for the platform pool even if there are virtual threads
+        REQUEST_PLATFORM_POOL_SIZE("threads.platformPoolSize", "64", 1, 10_000, false),
+        SHUTDOWN_CLOSE_THREADS("threads.shutdownClose", "16", 1, 1000, true),
+        // memory
+        RENDER_CACHE_BUDGET_MB("cache.renderBudgetMb", "64", 0, 65_536, true),
+        REPLY_CACHE_MAX_ENTRIES("cache.replyMaxEntries", "10000", 0, 10_000_000, false),
+        REPLY_CACHE_IN_FLIGHT_WAIT_MS("cache.replyInFlightWaitMs", "30000", 0, 600_000, true),  // how long a retry waits on its still-running original
+        COMPRESS_MIN_BYTES("compress.minBytes", "1024", 0, Integer.MAX_VALUE, true),
+        // nack, see ConsumerFlowManager's releaseMessage()
+        NACK_MAX_REDELIVERIES("nack.maxRedeliveries", "3", 1, 1000, true),                 // a message NACKed as 'failed' this many times goes to the DMQ instead
+        NACK_DMQ_NAME("nack.dmqName", Kind.STRING, "#DEAD_MSG_QUEUE", true),               // where 'rejected' ones go
+        // session
+        SESSION_RECONNECT_RETRIES("session.reconnectRetries", "20", -1, 100_000, false),   // -1 for forever, as JCSMP has it
+        SESSION_CONNECT_RETRIES_PER_HOST("session.connectRetriesPerHost", "5", 0, 1000, false),
+        SESSION_PUB_ACK_WINDOW_SIZE("session.pubAckWindowSize", "255", 1, 255, false),  // max, so Guaranteed publishes pipeline
+        SHUTDOWN_DRAIN_MS("shutdown.drainMs", "10000", 0, 600_000, true),
+        SHUTDOWN_CLOSE_TIMEOUT_MS("shutdown.closeTimeoutMs", "5000", 0, 600_000, true),     // how long shutdown waits for flows to close, the session's about to go anyway
+        // logging
+        LOG_DUMP_EVERY("log.dumpEvery", "1", 0, Integer.MAX_VALUE, true),                   // dump() 1 in this many requests and replies to stdout, 0 for none
         ;
-        
-        Props(String url) {
-            
+
+        final String key;
+        final String defaultValue;
+        final Kind kind;
+        final int min;  // inclusive, anything outside these is refused
+        final int max;
+        final boolean reloadable;
+
+        /** a whole number between min and max */
+        Props(String key, String defaultValue, int min, int max, boolean reloadable) {
+            this.key = key;
+            this.defaultValue = defaultValue;
+            this.kind = Kind.INT;
+            this.min = min;
+            this.max = max;
+            this.reloadable = reloadable;
+        }
+
+        /** true or false, or a non-blank string */
+        Props(String key, Kind kind, String defaultValue, boolean reloadable) {
+            this.key = key;
+            this.defaultValue = defaultValue;
+            this.kind = kind;
+            this.min = 0;
+            this.max = 1;
+            this.reloadable = reloadable;
+        }
+
+        String getEnvName() {
+            return ENV_PREFIX + name();
+        }
+
+        String getSystemPropertyName() {
+            return SYSTEM_PROPERTY_PREFIX + key;
+        }
+    }
+
+    private static volatile int[] values = new int[Props.values().length];  // by ordinal, booleans are 0 or 1, strings are in current
+    private static volatile RestQProps current = null;
+    private static long loadedFileModified = -1;  // guarded by the class
+    private static final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+    private static final List<String> startupErrors = new ArrayList<>();  // bad values in the very first load, guarded by the class
+
+    static {
+        for (Props prop : Props.values()) {
+            values[prop.ordinal()] = parse(prop, prop.defaultValue);
+        }
+        reload();
+    }
+
+    static int getInt(Props prop) {
+        return values[prop.ordinal()];
+    }
+
+    static boolean getBoolean(Props prop) {
+        return values[prop.ordinal()] != 0;
+    }
+
+    static String getString(Props prop) {
+        return current.getProperty(prop.key).trim();
+    }
+
+    /** whatever was wrong with the config we started with; the app refuses to start if there's anything here */
+    static synchronized List<String> getStartupErrors() {
+        return new ArrayList<>(startupErrors);
+    }
+
+    /** what's in effect (as strings), for logging */
+    static RestQProps getCurrent() {
+        return current;
+    }
+
+    /** called after a reload changes anything, for things that have to be told (e.g. a cache budget) */
+    static void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    static Path getConfigFile() {
+        String file = System.getProperty(CONFIG_FILE_PROPERTY);
+        if (file == null) file = System.getenv(CONFIG_FILE_ENV);
+        return Paths.get(file != null ? file : DEFAULT_CONFIG_FILE);
+    }
+
+    private static int parse(Props prop, String value) throws IllegalArgumentException {
+        value = value.trim();
+        if (prop.kind == Kind.STRING) {
+            if (value.isEmpty()) throw new IllegalArgumentException(prop.key + " can't be blank");
+            return 0;
         }
+        if (prop.kind == Kind.BOOLEAN) {
+            if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalArgumentException(prop.key + " must be true or false, not '" + value + "'");
+            }
+            return Boolean.parseBoolean(value) ? 1 : 0;
+        }
+        try {
+            int i = Integer.parseInt(value);
+            if (i < prop.min || i > prop.max) throw new NumberFormatException();
+            return i;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(prop.key + " must be a whole number from " + prop.min + " to " + prop.max + ", not '" + value + "'");
+        }
+    }
+
+    /** defaults, then the file, env and system properties, as strings; anything we don't know about is ignored */
+    static RestQProps load(Properties file, Map<String,String> env, Properties system) {
+        RestQProps props = new RestQProps();
+        for (Props prop : Props.values()) {
+            String value = prop.defaultValue;
+            if (file.getProperty(prop.key) != null) value = file.getProperty(prop.key);
+            if (env.get(prop.getEnvName()) != null) value = env.get(prop.getEnvName());
+            if (system.getProperty(prop.getSystemPropertyName()) != null) value = system.getProperty(prop.getSystemPropertyName());
+            props.setProperty(prop.key, value);
+        }
+        return props;
+    }
+
+    /** (re-)read everything and apply it */
+    static synchronized void reload() {
+        Path path = getConfigFile();
+        Properties file = new Properties();
+        long modified = -1;
+        if (Files.isReadable(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                modified = Files.getLastModifiedTime(path).toMillis();
+                file.load(in);
+            } catch (IOException | IllegalArgumentException e) {  // half-written, say; try again next time it changes
+                logger.error("Couldn't read config file {}, keeping what we have", path, e);
+                if (current != null) return;
+                file = new Properties();  // but we have to start with something
+            }
+        }
+        loadedFileModified = modified;
+        apply(load(file, System.getenv(), System.getProperties()));
+    }
+
+    /**
+     * Make these the values in effect.  One that doesn't parse or is out of range is logged and the old one kept;
+     * one that isn't reloadable is logged and kept until a restart.  The very first load takes everything, of
+     * course, with the default in place of a bad value, which is also remembered so the app can refuse to start.
+     */
+    static synchronized void apply(RestQProps loaded) {
+        final boolean firstLoad = current == null;
+        int[] newValues = values.clone();
+        boolean changed = false;
+        for (Props prop : Props.values()) {
+            String value = loaded.getProperty(prop.key);
+            if (!firstLoad && value.equals(current.getProperty(prop.key))) continue;
+            int parsed;
+            try {
+                parsed = parse(prop, value);
+            } catch (IllegalArgumentException e) {
+                logger.error("Ignoring bad config value: {}", e.getMessage());
+                if (firstLoad) startupErrors.add(e.getMessage());
+                loaded.setProperty(prop.key, firstLoad ? prop.defaultValue : current.getProperty(prop.key));
+                continue;
+            }
+            if (!firstLoad && !prop.reloadable) {
+                logger.warn("{} changed to {}, but that only takes effect after a restart", prop.key, value);
+                loaded.setProperty(prop.key, current.getProperty(prop.key));
+                continue;
+            }
+            if (!firstLoad) logger.info("{} changed from {} to {}", prop.key, current.getProperty(prop.key), value);
+            newValues[prop.ordinal()] = parsed;
+            changed = true;
+        }
+        values = newValues;
+        current = loaded;
+        if (changed && !firstLoad) {
+            for (Runnable listener : reloadListeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /** re-read the file every so often if it's changed (or appeared, or gone) */
+    static void watchConfigFile() {
+        FlowManager.pool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Path path = getConfigFile();
+                long modified;
+                try {
+                    modified = Files.isReadable(path) ? Files.getLastModifiedTime(path).toMillis() : -1;
+                } catch (IOException e) {
+                    modified = -1;
+                }
+                synchronized (RestQProps.class) {
+                    if (modified == loadedFileModified) return;
+                }
+                logger.info("Config file {} changed, reloading", path);
+                reload();
+            }
+        }, RELOAD_CHECK_INTERVAL_SEC, RELOAD_CHECK_INTERVAL_SEC, TimeUnit.SECONDS);
     }
-    
-    
-    
 }
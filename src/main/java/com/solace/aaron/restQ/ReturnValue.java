@@ -10,6 +10,7 @@ public class ReturnValue {
     private final boolean isSuccess;
     private final Throwable cause;
     private final Map<String,String> httpHeaders = new HashMap<>();
+    private Flow flow = null;  // for a successful bind or browse
     
     public ReturnValue(int httpReturnCode, String httpReturnReason, boolean isSuccess) {
         this(httpReturnCode,httpReturnReason,isSuccess,null);
@@ -47,4 +48,13 @@ public class ReturnValue {
         return httpHeaders;
     }
     
+    public ReturnValue withFlow(Flow flow) {
+        this.flow = flow;
+        return this;
+    }
+    
+    public Flow getFlow() {
+        return flow;
+    }
+    
 }
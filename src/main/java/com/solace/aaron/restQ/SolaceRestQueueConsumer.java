@@ -16,8 +16,11 @@
 
 package com.solace.aaron.restQ;
 
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.jcsmp.BytesXMLMessage;
 import com.solacesystems.jcsmp.CapabilityType;
+import com.solacesystems.jcsmp.DeliveryMode;
+import com.solacesystems.jcsmp.Destination;
 import com.solacesystems.jcsmp.JCSMPChannelProperties;
 import com.solacesystems.jcsmp.JCSMPErrorResponseException;
 import com.solacesystems.jcsmp.JCSMPErrorResponseSubcodeEx;
@@ -30,20 +33,44 @@ import com.solacesystems.jcsmp.JCSMPTransportException;
 import com.solacesystems.jcsmp.Queue;
 import com.solacesystems.jcsmp.SDTException;
 import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.SessionEvent;
 import com.solacesystems.jcsmp.SessionEventArgs;
 import com.solacesystems.jcsmp.SessionEventHandler;
 import com.solacesystems.jcsmp.TextMessage;
 import com.solacesystems.jcsmp.XMLMessageConsumer;
 import com.solacesystems.jcsmp.XMLMessageListener;
 import com.solacesystems.jcsmp.XMLMessageProducer;
+import com.solacesystems.jcsmp.transaction.RollbackException;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -61,20 +88,30 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     private JCSMPSession session;
     private XMLMessageProducer producer;
     private XMLMessageConsumer consumer;
-    private volatile boolean isShutdown = false;             // are we done?
+    private volatile boolean isShutdown = false;             // are we done?  no more requests once we are
+    private boolean shutdownComplete = false;                // guarded by this
+    private final CountDownLatch stopRequested = new CountDownLatch(1);  // main() waits on this
 
     private static final JCSMPFactory f = JCSMPFactory.onlyInstance();
     private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
 
     
-    private FlowManager flowManager = new ConsumerFlowManager();
-    private FlowManager browserManager = new BrowserFlowManager();
+    private ConsumerFlowManager flowManager = new ConsumerFlowManager();
+    private BrowserFlowManager browserManager = new BrowserFlowManager();
+    private final ReplyCache replyCache = new ReplyCache();  // so a retried recv/ack doesn't do it twice
+    private final AdmissionControl admission = new AdmissionControl();  // per-flow/per-client rate limits, concurrency cap
+    private final ExecutorService requestPool = RequestExecutors.newRequestExecutor("Request");  // virtual threads if we have them
+    private final Map<String,AdminJob> jobs = new ConcurrentHashMap<>();  // export/import jobs, by jobId
+    private final ExecutorService jobPool = Executors.newCachedThreadPool(new DaemonThreadFactory("AdminJob"));
+    private final AtomicInteger jobCount = new AtomicInteger(0);
+    private final AtomicLong dumpCount = new AtomicLong(0);  // for log.dumpEvery
     
     //private Map<String,Map<String,Browser>> browsers = new HashMap<>();
 
     public static final String QUEUE_SUB_MATCH_PATTERN = ">";  // all queues
 //    public static final String CORR_ID_REGEX = "ID:Solace\\-[0-9a-f]{16}"; 
     public static final String CORR_ID_REGEX = "([0-9a-f]{16})";
+    public static final int MAX_SEND_BATCH = 1000;  // messages per send() request
 
     
     
@@ -91,6 +128,9 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             //String flowId = flowManager.getFlowId(queueName);
             session.addSubscription(f.createTopic("GET/restQ/*/"+flowId),true);         // catch-all for this flowId
             session.addSubscription(f.createTopic("DELETE/restQ/*/"+flowId),true);         // catch-all for this flowId
+            if ("true".equals(rmo.getParam("transacted"))) {
+                session.addSubscription(f.createTopic("POST/restQ/*/"+flowId),true);       // commit and rollback
+            }
 //            session.addSubscription(f.createTopic("GET/restQ/recv/"+flowId),true);         // consume a msg off a flowId
 //            session.addSubscription(f.createTopic("DELETE/restQ/ack/"+flowId),true);      // ack a msg off a flowId
 //            session.addSubscription(f.createTopic("GET/restQ/getMsg/"+flowId),true);      // get a specific msg by flowId and msgId
@@ -98,6 +138,7 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
 //            session.addSubscription(f.createTopic("HEAD/restQ/keepalive/"+flowId),true);  // heartbeat to keep flow or browse alive
             return new ReturnValue(201, "OK", true)
                     .withHttpHeader("Location","/restQ/recv/"+flowId)  // can't pass this through
+                    .withFlow(flow)
                     ;
 /*        } catch (OperationNotSupportedException e) {  // not allowed to do this
             logger.error("Nope, couldn't do that!",e);
@@ -132,6 +173,7 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
 //            session.addSubscription(f.createTopic("HEAD/restQ/keepalive/"+flowId),true);  // heartbeat to keep flow or browse alive
             return new ReturnValue(201, "OK", true)
                     .withHttpHeader("Location","/restQ/recv/"+flowId)  // can't pass this through
+                    .withFlow(flow)
                     ;
 /*        } catch (OperationNotSupportedException e) {  // not allowed to do this
             logger.error("Nope, couldn't do that!",e);
@@ -152,7 +194,12 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     }
     
     
-    
+
+    /** for a flowId that doesn't resolve to an open flow: was it ours and closed, or never was? */
+    static ErrorTypes unknownFlowError(String flowId) {
+        return FlowManager.registry.wasClosed(flowId) ? ErrorTypes.FLOW_CLOSED_TIMEOUT : ErrorTypes.INVALID_FLOW_ID;
+    }
+
     void sendErrorResponse(BytesXMLMessage origMsg, ErrorTypes errorType) {
         sendErrorResponse(origMsg, errorType.getCode(), errorType.getMessage());
     }
@@ -162,6 +209,10 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     }
     
     void sendErrorResponse(BytesXMLMessage origMsg, int code, String reason) {  // reason or reason + message
+        sendErrorResponse(origMsg, code, reason, Collections.emptyMap());
+    }
+
+    void sendErrorResponse(BytesXMLMessage origMsg, int code, String reason, Map<String,String> otherHeaders) {
         TextMessage replyMsg = f.createMessage(TextMessage.class);
         JsonObjectBuilder job = Json.createObjectBuilder();
         job.add("reason", reason);
@@ -172,14 +223,21 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             SDTMap map = f.createMap();
             map.putShort("JMS_Solace_HTTP_status_code",(short)code);
             map.putString("JMS_Solace_HTTP_reason_phrase",reason);
+            for (String key : otherHeaders.keySet()) {
+                map.putString("JMS_Solace_HTTP_field_"+key, otherHeaders.get(key));
+            }
             replyMsg.setProperties(map);
         } catch (SDTException e) { }  // ignore
         try {
-            producer.sendReply(origMsg, replyMsg);
-            System.out.printf("<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<%nRESPONSE MESSAGE:%n");
-            System.out.println(replyMsg.dump());
+            sendReply(origMsg, replyMsg);
+            if (sampleDump()) {
+                System.out.printf("<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<%nRESPONSE MESSAGE:%n");
+                System.out.println(replyMsg.dump());
+            }
         } catch (JCSMPException e) {
             logger.error("Cannot send an error response message!",e);
+        } finally {
+            releaseClaim(origMsg);  // nothing cached, so a retry waiting on this one gets to try for itself
         }
     }
 
@@ -211,13 +269,53 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             replyMsg.setProperties(map);
         } catch (SDTException e) { }  // ignore
         try {
-            producer.sendReply(origMsg, replyMsg);
-            System.out.printf("<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<%nRESPONSE MESSAGE:%n");
-            System.out.println(replyMsg.dump());
+            sendReply(origMsg, replyMsg);
+            rememberReply(origMsg, replyMsg);
+            if (sampleDump()) {
+                System.out.printf("<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<%nRESPONSE MESSAGE:%n");
+                System.out.println(replyMsg.dump());
+            }
         } catch (JCSMPException e) {
             logger.error("Cannot send a 200 OK response message!",e);
+        } finally {
+            releaseClaim(origMsg);
         }
     }
+    
+    /** dump()ing every message is expensive under load, so only 1 in log.dumpEvery of them (0 for none) */
+    private boolean sampleDump() {
+        final int every = RestQProps.getInt(Props.LOG_DUMP_EVERY);
+        return every > 0 && (every == 1 || dumpCount.getAndIncrement() % every == 0);
+    }
+    
+    /** every reply goes out through here, compressed if the client accepts it and it's big enough to bother */
+    private void sendReply(BytesXMLMessage origMsg, BytesXMLMessage replyMsg) throws JCSMPException {
+        producer.sendReply(origMsg, ResponseCompressor.compressReply(origMsg, replyMsg));
+    }
+    
+    /** the requests that would do something again if they got retried; the rest are safe to just re-run */
+    private static boolean isRetrySensitive(String topic) {
+        return topic.startsWith("GET/restQ/recv/") || topic.startsWith("GET/restQ/next/")
+                || topic.startsWith("DELETE/restQ/ack/") || topic.startsWith("DELETE/restQ/nack/")
+                || topic.startsWith("DELETE/restQ/del/") || topic.startsWith("POST/restQ/send/")
+                || topic.startsWith("POST/restQ/commit/");
+    }
+    
+    /** only successful replies: errors (like 404 no messages) should get tried again properly */
+    private void rememberReply(BytesXMLMessage origMsg, BytesXMLMessage replyMsg) {
+        String topic = origMsg.getDestination().getName();
+        if (!isRetrySensitive(topic)) return;
+        String key = ReplyCache.keyFor(topic, origMsg);
+        if (key != null) replyCache.put(key, replyMsg);
+    }
+
+    /** this request has had its reply (already cached if it was a success), so any retries of it waiting can go */
+    private void releaseClaim(BytesXMLMessage origMsg) {
+        String topic = origMsg.getDestination().getName();
+        if (!isRetrySensitive(topic)) return;
+        String key = ReplyCache.keyFor(topic, origMsg);
+        if (key != null) replyCache.done(key, origMsg);
+    }
 
 
     
@@ -228,6 +326,12 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             System.exit(1);
         }
         System.out.println("SolaceRestQueueConsumer initializing...");
+        if (!RestQProps.getStartupErrors().isEmpty()) {  // don't run on defaults the operator didn't ask for
+            System.out.println("Bad config, not starting: " + RestQProps.getStartupErrors());
+            System.exit(1);
+        }
+        logger.info("Config (file {}): {}", RestQProps.getConfigFile().toAbsolutePath(), RestQProps.getCurrent());
+        RestQProps.watchConfigFile();
 
         final JCSMPProperties properties = new JCSMPProperties();
         properties.setProperty(JCSMPProperties.HOST, args[0]);          // host:port
@@ -237,9 +341,10 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             properties.setProperty(JCSMPProperties.PASSWORD, args[3]);  // client-password
         }
         properties.setProperty(JCSMPProperties.REAPPLY_SUBSCRIPTIONS, true);
+        properties.setProperty(JCSMPProperties.PUB_ACK_WINDOW_SIZE, RestQProps.getInt(Props.SESSION_PUB_ACK_WINDOW_SIZE));  // max, so Guaranteed publishes pipeline
         JCSMPChannelProperties channelProps = new JCSMPChannelProperties();
-        channelProps.setReconnectRetries(20);      // recommended settings
-        channelProps.setConnectRetriesPerHost(5);  // recommended settings
+        channelProps.setReconnectRetries(RestQProps.getInt(Props.SESSION_RECONNECT_RETRIES));            // recommended settings
+        channelProps.setConnectRetriesPerHost(RestQProps.getInt(Props.SESSION_CONNECT_RETRIES_PER_HOST));  // recommended settings
         // https://docs.solace.com/Solace-PubSub-Messaging-APIs/API-Developer-Guide/Configuring-Connection-T.htm
         properties.setProperty(JCSMPProperties.CLIENT_CHANNEL_PROPERTIES, channelProps);
         session = f.createSession(properties, null, new SessionEventHandler() {
@@ -247,6 +352,10 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             public void handleEvent(SessionEventArgs event) {  // could be reconnecting, connection lost, etc.
                 System.out.println("### Session event: " + event);
                 logger.info("### Session event: " + event);
+                if (event.getEvent() == SessionEvent.RECONNECTED) {  // flows come back by themselves, but unacked msgs will be redelivered
+                    flowManager.onSessionReconnected();
+                    browserManager.onSessionReconnected();
+                }
             }
         });
         String cName = (String)session.getProperty(JCSMPProperties.CLIENT_NAME);
@@ -264,8 +373,11 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         }
 
         producer = session.getMessageProducer(new JCSMPStreamingPublishCorrelatingEventHandler() {
-            // unused in Direct Messaging application, only for Guaranteed/Persistent publishing application
+            // only for Guaranteed/Persistent publishes, e.g. releasing (NACKing) a message
             @Override public void responseReceivedEx(Object key) {
+                if (key instanceof PublishCallback) {
+                    ((PublishCallback)key).onPublished();
+                }
             }
 
             // can be called for ACL violations, connection loss, and Persistent NACKs
@@ -278,12 +390,17 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
                             + ": " + e.getResponsePhrase());
                     System.out.println(cause);
                 }
+                if (key instanceof PublishCallback) {
+                    ((PublishCallback)key).onPublishFailed(cause);
+                }
             }
         });
 
         
         
         
+        flowManager.setProducer(producer);  // for push-mode flows
+        
         consumer = session.getMessageConsumer(this);  // I myself am my own listener (at bottom)
         
         // MicroGateway: Allow: DELETE, GET, HEAD, OPTIONS, PATCH, POST, PUT
@@ -293,6 +410,11 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         session.addSubscription(f.createTopic("GET/restQ/browse/"+QUEUE_SUB_MATCH_PATTERN));   // start a read-only browse session
         session.addSubscription(f.createTopic("POST/restQ/browse/"+QUEUE_SUB_MATCH_PATTERN));  // start a read/delete browse session
         
+        session.addSubscription(f.createTopic("POST/restQ/export/"+QUEUE_SUB_MATCH_PATTERN));  // snapshot a queue to a file
+        session.addSubscription(f.createTopic("POST/restQ/import/"+QUEUE_SUB_MATCH_PATTERN));  // replay an exported file into a queue
+        session.addSubscription(f.createTopic("POST/restQ/send/"+QUEUE_SUB_MATCH_PATTERN));    // publish to a queue or topic
+        session.addSubscription(f.createTopic("GET/restQ/job/"+QUEUE_SUB_MATCH_PATTERN));      // how's that export/import going?
+        
         // these next ones will us a flow
 //        session.addSubscription(f.createTopic("GET/restQ/recv/"+QUEUE_SUB_MATCH_PATTERN));      // consume a msg off a flowId
 //        session.addSubscription(f.createTopic("DELETE/restQ/ack/"+QUEUE_SUB_MATCH_PATTERN));   // ack a msg off a flowId
@@ -310,28 +432,60 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         consumer.start();
     }
     
-    void shutdown() {
+    /**
+     * In order: stop taking requests, give the ones in progress (then any sends and export/import jobs they
+     * started) until the drain deadline to finish, close all the flows at once, then the timers, and finally
+     * the session.  Only the first call does anything; any others wait for it.
+     */
+    synchronized void shutdown() {
+        if (shutdownComplete) return;
         isShutdown = true;
+        System.out.println("Shutting down, draining requests in progress...");
+        if (consumer != null) consumer.stop();  // no more requests delivered
+        final long deadline = System.currentTimeMillis() + RestQProps.getInt(Props.SHUTDOWN_DRAIN_MS);  // for requests, sends and jobs to finish
+        drain(requestPool, "requests", deadline);
+        drain(FlowManager.publishPool, "sends", deadline);
+        drain(jobPool, "admin jobs", deadline);
         flowManager.shutdown();
+        browserManager.shutdown();
+        FlowManager.pool.shutdownNow();          // closed flows don't recover, so nothing left for these to do
+        FlowManager.recoveryPool.shutdownNow();
+        if (session != null) session.closeSession();  // will also close consumer object
+        shutdownComplete = true;
+        stopRequested.countDown();
+        System.out.println("Shut down.");
+    }
+
+    /** no new work, and wait until the deadline for what's there; anything still going after that is interrupted */
+    private static void drain(ExecutorService pool, String what, long deadline) {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                List<Runnable> neverStarted = pool.shutdownNow();
+                System.out.printf("Gave up waiting for %s to finish, %d never started%n", what, neverStarted.size());
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 
     public static void main(String... args) throws JCSMPException, InterruptedException, IOException {
         
         
-        SolaceRestQueueConsumer srqc = new SolaceRestQueueConsumer();
+        final SolaceRestQueueConsumer srqc = new SolaceRestQueueConsumer();
         srqc.init(args);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {  // Ctrl-C, SIGTERM, etc.
+            @Override
+            public void run() {
+                srqc.shutdown();
+            }
+        }, "ShutdownHook"));
         
         // async queue receive working now, so time to wait until done...
-        System.out.println("SolaceRestQueueConsumer connected, and running. Press [ENTER] to quit.");
-        while (System.in.available() == 0 && !srqc.isShutdown) {
-            Thread.sleep(100);  // wait 1 second
-        
-        }
-        System.out.println("Shut down detected...");
-        srqc.shutdown();
-        Thread.sleep(1000);
+        System.out.println("SolaceRestQueueConsumer connected, and running. Ctrl-C (or SIGTERM) to quit.");
+        srqc.stopRequested.await();  // the shutdown hook, or we lost the connection for good
         srqc.shutdown();
-        srqc.session.closeSession();  // will also close consumer object
         System.out.println("Main thread quitting.");
     }
     
@@ -344,20 +498,80 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         final String queueName = rmo.resourceName;
         // param check
         // nothing mandatory
-        if (!rmo.checkForAllowedParams("selector")) {
+        if (!rmo.checkForAllowedParams("selector","filter","filterRoute","partitions","push","pushWindow","format","fields","visibility","ackMode","transacted")) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
-        if (flowManager.doesQueueHaveBoundFlow(queueName)) {
-            sendErrorResponse(rmo.requestMessage, 400, "queue " + queueName + " already has bound flow");
+        if (rmo.getParam("push") == null && (rmo.getParam("pushWindow") != null || rmo.getParam("format") != null || rmo.getParam("fields") != null)) {
+            sendErrorResponse(rmo.requestMessage, 400, "pushWindow, format and fields only apply to push flows");
+            return;
+        }
+        if (!checkFieldsParam(rmo)) return;
+        try {
+            PayloadFilter.compile(rmo.getParam("filter"));  // compiled for real in the flow, this is just to check it
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(rmo.requestMessage, 400, e.getMessage());
+            return;
+        }
+        if (rmo.getParam("filterRoute") != null && rmo.getParam("filter") == null) {
+            sendErrorResponse(rmo.requestMessage, 400, "filterRoute only applies with a filter");
             return;
         }
+        if (rmo.getParam("push") != null && rmo.getParam("push").isEmpty()) {
+            sendErrorResponse(rmo.requestMessage, 400, "push topic can't be empty");
+            return;
+        }
+        if (rmo.getParam("pushWindow") != null) {
+            final int maxPushWindow = RestQProps.getInt(Props.FLOW_PUSH_MAX_WINDOW);
+            try {
+                int pushWindow = Integer.parseInt(rmo.getParam("pushWindow"));
+                if (pushWindow < 1 || pushWindow > maxPushWindow) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "pushWindow must be between 1 and " + maxPushWindow);
+                return;
+            }
+        }
+        if (!checkVisibilityParam(rmo)) return;
+        if (rmo.getParam("ackMode") != null && !"auto".equals(rmo.getParam("ackMode")) && !"client".equals(rmo.getParam("ackMode"))) {
+            sendErrorResponse(rmo.requestMessage, 400, "ackMode must be auto or client");
+            return;
+        }
+        if ("auto".equals(rmo.getParam("ackMode")) && rmo.getParam("visibility") != null) {
+            sendErrorResponse(rmo.requestMessage, 400, "visibility doesn't apply to an auto-ack flow");
+            return;
+        }
+        if (rmo.getParam("transacted") != null) {
+            if (!"true".equals(rmo.getParam("transacted")) && !"false".equals(rmo.getParam("transacted"))) {
+                sendErrorResponse(rmo.requestMessage, 400, "transacted must be true or false");
+                return;
+            }
+            if ("true".equals(rmo.getParam("transacted"))
+                    && (rmo.getParam("push") != null || rmo.getParam("ackMode") != null || rmo.getParam("visibility") != null
+                        || rmo.getParam("filter") != null)) {
+                sendErrorResponse(rmo.requestMessage, 400, "a transacted flow can't push, auto-ack, filter or use visibility timeouts");
+                return;
+            }
+        }
+        final List<String> memberQueueNames;  // more than one for a fan-in bind
+        try {
+            memberQueueNames = UsefulUtils.parseQueueNames(queueName, rmo.getParam("partitions"));
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(rmo.requestMessage, 400, e.getMessage());
+            return;
+        }
+        final int maxFlows = RestQProps.getInt(Props.FLOW_MAX_PER_QUEUE);  // non-exclusive queues load-balance across these, exclusive ones just get standbys
+        for (String memberQueueName : memberQueueNames) {
+            if (flowManager.getBoundFlowCount(memberQueueName) >= maxFlows) {
+                sendErrorResponse(rmo.requestMessage, 400, "queue " + memberQueueName + " already has " + maxFlows + " bound flows");
+                return;
+            }
+        }
         // ok, let's try to connect...
         ReturnValue rv = connectNewQueue(rmo);
         if (rv.isSuccess()) {
             JsonObjectBuilder job = Json.createObjectBuilder();
-            job.add("flowId", flowManager.getFlowIdForQueue(queueName));
-            job.add("magicKey", flowManager.getFlowFromId(flowManager.getFlowIdForQueue(queueName)).getMagicKey());
+            job.add("flowId", rv.getFlow().getFlowId());
+            job.add("magicKey", rv.getFlow().getMagicKey());
             sendOkResponse(rmo.requestMessage, job.build().toString(), rv.getHttpReturnCode(), rv.getHttpHeaders());
             return;
         } else {
@@ -367,25 +581,78 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     }
     
     
+    /** fields=a,b,properties.c is optional, but has to name real fields, and not with format=dump; sends the error response if not */
+    private boolean checkFieldsParam(RequestMessageObject rmo) {
+        try {
+            if (FieldSelection.parse(rmo.getParam("fields")) == null) return true;
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(rmo.requestMessage, 400, e.getMessage());
+            return false;
+        }
+        if ("dump".equals(rmo.getParam("format"))) {
+            sendErrorResponse(rmo.requestMessage, 400, "fields doesn't apply to format=dump");
+            return false;
+        }
+        return true;
+    }
+    
+    /** visibility=<seconds> is optional, but has to be sane; sends the error response if not */
+    private boolean checkVisibilityParam(RequestMessageObject rmo) {
+        if (rmo.getParam("visibility") == null) return true;
+        final int maxVisibility = RestQProps.getInt(Props.VISIBILITY_MAX_SEC);
+        try {
+            int visibility = Integer.parseInt(rmo.getParam("visibility"));
+            if (visibility < 0 || visibility > maxVisibility) throw new NumberFormatException();
+            return true;
+        } catch (NumberFormatException e) {
+            sendErrorResponse(rmo.requestMessage, 400, "visibility must be between 0 and " + maxVisibility + " seconds");
+            return false;
+        }
+    }
+    
     private void receiveNext(RequestMessageObject rmo) {
         final String flowId = rmo.resourceName;
         // param check
-        if (!rmo.checkForAllowedParams("format")) {
+        if (!rmo.checkForAllowedParams("format","fields","visibility")) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
+        if (!checkVisibilityParam(rmo) || !checkFieldsParam(rmo)) return;
         // check that the passed flowId matches one that we know about
         if (!flowManager.doesFlowExist(flowId)) {  // it definitely should as we have subs configured for this flowId
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_FLOW_ID);
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        Flow flow = flowManager.getFlowFromId(flowId);
+        if (flow.getPushTopic() != null) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_IS_PUSH);
+            return;
+        }
+        if (rmo.getParam("visibility") != null && !(flow instanceof ConsumableFlow)) {  // held until the commit or rollback
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_IS_TRANSACTED);
             return;
         }
         try {
-            BytesXMLMessage msg = flowManager.getFlowFromId(flowId).getNextMessage(rmo.uuid);
-            if (msg == null) {
-                sendErrorResponse(rmo.requestMessage, 404, "no messages");
+            UnackedMessage msg = flow.getNextMessage();
+            if (msg == null && flow.isRecovering()) {  // waited, but the flow still isn't back yet
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_RECOVERING);
+                return;
+            } else if (msg == null) {  // and say when it's worth trying again, so idle queues aren't polled flat out
+                long nextPollMs = flow.getNextPollMs();
+                Map<String,String> headers = new HashMap<>();
+                if (nextPollMs > 0) {
+                    headers.put("X-RestQ-Next-Poll-Ms", Long.toString(nextPollMs));
+                    if (nextPollMs >= 1000) headers.put("Retry-After", Long.toString((nextPollMs + 999) / 1000));  // whole seconds only
+                }
+                sendErrorResponse(rmo.requestMessage, 404, "no messages", headers);
                 return;
             } else {
-                producer.sendReply(rmo.requestMessage, UsefulUtils.formatResponseMessage(msg, rmo));
+                if (rmo.getParam("visibility") != null) {  // override the flow's default for this one
+                    ((ConsumableFlow)flow).setVisibilityTimeout(msg.msgId, Integer.parseInt(rmo.getParam("visibility")));
+                }
+                BytesXMLMessage replyMsg = UsefulUtils.formatResponseMessage(msg, rmo.getParam("format"), FieldSelection.parse(rmo.getParam("fields")));
+                sendReply(rmo.requestMessage, replyMsg);
+                rememberReply(rmo.requestMessage, replyMsg);
             }
         } catch (JCSMPException e) {
             // TODO do something better here probably!
@@ -397,6 +664,10 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     private void ackMessage(RequestMessageObject rmo) {
         final String flowId = rmo.resourceName;
         // param check
+        if (rmo.getParam("upTo") != null) {  // the cumulative form
+            ackMessagesUpTo(rmo);
+            return;
+        }
         if (!rmo.checkForMandatoryParams("msgId")) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
@@ -408,10 +679,15 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
 //        }
         // check that the passed flowId matches one that we know about
         if (!flowManager.doesFlowExist(flowId)) {  // it definitely should as we have subs configured for this flowId
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_FLOW_ID);
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
             return;
         }
-        Flow flow = flowManager.getFlowFromId(rmo.resourceName);
+        Flow found = flowManager.getFlowFromId(flowId);
+        if (!(found instanceof ConsumableFlow)) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_IS_TRANSACTED);
+            return;
+        }
+        ConsumableFlow flow = (ConsumableFlow)found;
         // verify that we've seen this message
         if (!flow.checkUnackedList(rmo.getParam("msgId"))) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_MSG_ID);
@@ -419,7 +695,7 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         }
         // else, good to go!
         try {
-            flow.getUnackedMessage(rmo.getParam("msgId")).ackMessage();  // if flow is closed, might die
+            flow.ackMessage(rmo.getParam("msgId"));  // if flow is closed, might die
             System.out.println("Successfully ACKed "+rmo.getParam("msgId"));
             sendOkResponse(rmo.requestMessage,null);
         } catch (RuntimeException e) {
@@ -429,6 +705,94 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     }
     
     
+    /** ack?upTo=<msgId>: that one and every older one still held, replies with how many */
+    private void ackMessagesUpTo(RequestMessageObject rmo) {
+        final String flowId = rmo.resourceName;
+        if (!rmo.checkForAllowedParams("upTo")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        Flow found = flowManager.getFlowFromId(flowId);
+        if (found == null || found.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        if (!(found instanceof ConsumableFlow)) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_IS_TRANSACTED);
+            return;
+        }
+        ConsumableFlow flow = (ConsumableFlow)found;
+        if (!flow.checkUnackedList(rmo.getParam("upTo"))) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_MSG_ID);
+            return;
+        }
+        try {
+            int acked = flow.ackMessagesUpTo(rmo.getParam("upTo"));
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("acked", acked);
+            sendOkResponse(rmo.requestMessage, job.build().toString());
+        } catch (RuntimeException e) {
+            logger.error("Caught while trying to ACK up to message {} on flow {}",rmo.getParam("upTo"),flowId,e);
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    
+    /** like ackMessage(), but msgId can be msgIds=a,b,c for the bulk form, and outcome can be failed (default) or rejected */
+    private void nackMessage(RequestMessageObject rmo) {
+        final String flowId = rmo.resourceName;
+        // param check
+        if (!rmo.checkForAllowedParams("msgId","msgIds","outcome")
+                || (rmo.getParam("msgId") == null) == (rmo.getParam("msgIds") == null)) {  // one or the other
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final ConsumableFlow.Outcome outcome;
+        if (rmo.getParam("outcome") == null || "failed".equals(rmo.getParam("outcome"))) {
+            outcome = ConsumableFlow.Outcome.FAILED;
+        } else if ("rejected".equals(rmo.getParam("outcome"))) {
+            outcome = ConsumableFlow.Outcome.REJECTED;
+        } else {
+            sendErrorResponse(rmo.requestMessage, 400, "outcome must be failed or rejected");
+            return;
+        }
+        // check that the passed flowId matches one that we know about
+        if (!flowManager.doesFlowExist(flowId)) {  // it definitely should as we have subs configured for this flowId
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        Flow found = flowManager.getFlowFromId(flowId);
+        if (!(found instanceof ConsumableFlow)) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_IS_TRANSACTED);
+            return;
+        }
+        ConsumableFlow flow = (ConsumableFlow)found;
+        List<String> msgIds = rmo.getParam("msgId") != null
+                ? Collections.singletonList(rmo.getParam("msgId"))
+                : Arrays.asList(rmo.getParam("msgIds").split(","));
+        // verify that we've seen all of these messages before touching any of them
+        for (String msgId : msgIds) {
+            if (!flow.checkUnackedList(msgId)) {
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_MSG_ID);
+                return;
+            }
+        }
+        int released = 0;
+        try {
+            for (String msgId : msgIds) {
+                flow.releaseMessage(msgId, outcome);
+                released++;
+            }
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("released", released);
+            sendOkResponse(rmo.requestMessage, job.build().toString());
+        } catch (JCSMPException | RuntimeException e) {
+            logger.error("Caught while trying to release messages {} on flow {}, {} done",msgIds,flowId,released,e);
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    
     private void unbindFromQueue(RequestMessageObject rmo) {
         String flowId = rmo.resourceName;
         // param check
@@ -487,14 +851,15 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
-        if (!rmo.checkForAllowedParams("msgId","format")) {
+        if (!rmo.checkForAllowedParams("msgId","format","fields")) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
+        if (!checkFieldsParam(rmo)) return;
         Flow flow = flowManager.getFlowFromId(rmo.resourceName);
         // check this flowId exists
-        if (flow == null) {
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_FLOW_ID);
+        if (flow == null || flow.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(rmo.resourceName));
             return;
         }
         // verify that we've seen this message
@@ -503,9 +868,9 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             return;
         }
         // looks good..!
-        BytesXMLMessage msg = flow.getUnackedMessage(rmo.getParam("msgId"));
+        UnackedMessage msg = flow.getUnackedMessage(rmo.getParam("msgId"));
         try {
-            producer.sendReply(rmo.requestMessage, UsefulUtils.formatResponseMessage(msg, rmo));
+            sendReply(rmo.requestMessage, UsefulUtils.formatResponseMessage(msg, rmo.getParam("format"), FieldSelection.parse(rmo.getParam("fields"))));
         } catch (JCSMPException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -514,23 +879,43 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
 
     private void getUnacked(RequestMessageObject rmo) {
         String flowId = rmo.resourceName;
-        // param check
-        if (!rmo.requestParams.isEmpty()) {
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.URL_PARAMS_NOT_EMPTY);
+        // param check: after=<msgId> to page on from, limit=N
+        if (!rmo.checkForAllowedParams("after","limit")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final String after = rmo.getParam("after");  // doesn't have to still be held, it's just a position
+        if (after != null && FlowRegistry.parseMsgSeq(after) < 0) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_MSG_ID);
             return;
         }
+        final int maxLimit = RestQProps.getInt(Props.UNACKED_PAGE_MAX_LIMIT);
+        int limit = Math.min(RestQProps.getInt(Props.UNACKED_PAGE_DEFAULT_LIMIT), maxLimit);
+        if (rmo.getParam("limit") != null) {
+            try {
+                limit = Integer.parseInt(rmo.getParam("limit"));
+                if (limit < 1 || limit > maxLimit) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "limit must be between 1 and " + maxLimit);
+                return;
+            }
+        }
         Flow flow = flowManager.getFlowFromId(flowId);
         // check this flowId exists
-        if (flow == null) {
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_FLOW_ID);
+        if (flow == null || flow.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
             return;
         }
+        List<String> msgIds = flow.getUnackedMessageIds(after, limit);
         JsonArrayBuilder jab = Json.createArrayBuilder();
-        for (String msgId : flow.getUnackedMessageIds()) {
+        for (String msgId : msgIds) {
             jab.add(msgId);
         }
         JsonObjectBuilder job = Json.createObjectBuilder();
         job.add("msgIds", jab);
+        if (msgIds.size() == limit) {  // might be more, pass this back as after= for the next page
+            job.add("next", msgIds.get(limit - 1));
+        }
         sendOkResponse(rmo.requestMessage, job.build().toString());
     }
 
@@ -544,16 +929,17 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
-        if (browserManager.doesQueueHaveBoundFlow(queueName)) {
-            sendErrorResponse(rmo.requestMessage, 400, "queue " + queueName + " already has bound flow");
+        final int maxFlows = RestQProps.getInt(Props.FLOW_MAX_PER_QUEUE);
+        if (browserManager.getBoundFlowCount(queueName) >= maxFlows) {
+            sendErrorResponse(rmo.requestMessage, 400, "queue " + queueName + " already has " + maxFlows + " bound flows");
             return;
         }
         // ok, let's try to connect...
         ReturnValue rv = connectBrowser(rmo);
         if (rv.isSuccess()) {
             JsonObjectBuilder job = Json.createObjectBuilder();
-            job.add("flowId", browserManager.getFlowIdForQueue(queueName));
-            job.add("magicKey", browserManager.getFlowFromId(browserManager.getFlowIdForQueue(queueName)).getMagicKey());
+            job.add("flowId", rv.getFlow().getFlowId());
+            job.add("magicKey", rv.getFlow().getMagicKey());
             sendOkResponse(rmo.requestMessage, job.build().toString(), rv.getHttpReturnCode(), rv.getHttpHeaders());
             return;
         } else {
@@ -565,22 +951,33 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
     private void getNext(RequestMessageObject rmo) {
         final String flowId = rmo.resourceName;
         // param check
-        if (!rmo.checkForAllowedParams("format")) {
+        if (rmo.getParam("limit") != null || rmo.getParam("cursor") != null) {  // a page at a time
+            getNextPage(rmo);
+            return;
+        }
+        if (!rmo.checkForAllowedParams("format","fields")) {
             sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
             return;
         }
+        if (!checkFieldsParam(rmo)) return;
         // check that the passed flowId matches one that we know about
         if (!browserManager.doesFlowExist(flowId)) {  // it definitely should as we have subs configured for this flowId
-            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_FLOW_ID);
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
             return;
         }
         try {
-            BytesXMLMessage msg = browserManager.getFlowFromId(flowId).getNextMessage(rmo.uuid);
-            if (msg == null) {
+            Flow flow = browserManager.getFlowFromId(flowId);
+            UnackedMessage msg = flow.getNextMessage();
+            if (msg == null && flow.isRecovering()) {  // waited, but the flow still isn't back yet
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_RECOVERING);
+                return;
+            } else if (msg == null) {
                 sendErrorResponse(rmo.requestMessage, 404, "no messages");
                 return;
             } else {
-                producer.sendReply(rmo.requestMessage, UsefulUtils.formatResponseMessage(msg, rmo));
+                BytesXMLMessage replyMsg = UsefulUtils.formatResponseMessage(msg, rmo.getParam("format"), FieldSelection.parse(rmo.getParam("fields")));
+                sendReply(rmo.requestMessage, replyMsg);
+                rememberReply(rmo.requestMessage, replyMsg);
             }
         } catch (JCSMPException e) {
             // TODO do something better here probably!
@@ -589,6 +986,404 @@ public class SolaceRestQueueConsumer implements XMLMessageListener {
         }
     }
     
+    /** next?limit=N&cursor=C: up to N messages in one JSON reply, plus the cursor to pass back for the next page */
+    private void getNextPage(RequestMessageObject rmo) {
+        final String flowId = rmo.resourceName;
+        // param check
+        if (!rmo.checkForAllowedParams("format","fields","limit","cursor")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        if (!checkFieldsParam(rmo)) return;
+        if ("dump".equals(rmo.getParam("format"))) {
+            sendErrorResponse(rmo.requestMessage, 400, "pages are always JSON, format can only be pretty");
+            return;
+        }
+        final int maxLimit = RestQProps.getInt(Props.BROWSE_PAGE_MAX_LIMIT);
+        int limit = maxLimit;
+        if (rmo.getParam("limit") != null) {
+            try {
+                limit = Integer.parseInt(rmo.getParam("limit"));
+                if (limit < 1 || limit > maxLimit) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "limit must be between 1 and " + maxLimit);
+                return;
+            }
+        }
+        long afterSeq = -1;  // no cursor, carry on from wherever the browser is
+        if (rmo.getParam("cursor") != null) {
+            try {
+                afterSeq = Long.parseLong(rmo.getParam("cursor"), 16);  // opaque to the client, but it's just the last seq
+                if (afterSeq < 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_CURSOR);
+                return;
+            }
+        }
+        BrowsableFlow flow = browserManager.getFlowFromId(flowId);
+        if (flow == null || flow.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        try {
+            List<UnackedMessage> page = flow.getNextMessages(afterSeq, limit);
+            if (page == null) {  // waited, but the flow still isn't back yet
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_RECOVERING);
+                return;
+            }
+            String cursor = null;  // nothing new and no cursor passed in: no cursor back either, just carry on without one
+            if (!page.isEmpty()) cursor = Long.toHexString(page.get(page.size() - 1).seq);
+            else if (afterSeq >= 0) cursor = rmo.getParam("cursor");
+            BytesXMLMessage replyMsg = UsefulUtils.formatResponsePage(page, cursor, rmo.getParam("format"), FieldSelection.parse(rmo.getParam("fields")));
+            sendReply(rmo.requestMessage, replyMsg);
+            rememberReply(rmo.requestMessage, replyMsg);
+        } catch (IllegalStateException e) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.CURSOR_EXPIRED);
+        } catch (JCSMPException e) {
+            e.printStackTrace();
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    /**
+     * Browse-and-delete, for a browser that was opened with POST: either msgIds=a,b,c from what's been browsed,
+     * or cursor=C&limit=N for everything in the page that next?cursor=C&limit=N returned (already filtered by
+     * the browser's selector).  Replies with how many were deleted, and how many of them we weren't holding.
+     */
+    private void deleteMessages(RequestMessageObject rmo) {
+        final String flowId = rmo.resourceName;
+        // param check
+        if (!rmo.checkForAllowedParams("msgIds","cursor","limit")
+                || (rmo.getParam("msgIds") == null) == (rmo.getParam("cursor") == null)  // one or the other
+                || (rmo.getParam("cursor") == null) != (rmo.getParam("limit") == null)) {  // and a page needs both
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        BrowsableFlow flow = browserManager.getFlowFromId(flowId);
+        if (flow == null || flow.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        final List<String> msgIds;
+        if (rmo.getParam("msgIds") != null) {
+            msgIds = Arrays.asList(rmo.getParam("msgIds").split(","));
+        } else {
+            final int maxLimit = RestQProps.getInt(Props.BROWSE_PAGE_MAX_LIMIT);
+            int limit;
+            long afterSeq;
+            try {
+                limit = Integer.parseInt(rmo.getParam("limit"));
+                if (limit < 1 || limit > maxLimit) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "limit must be between 1 and " + maxLimit);
+                return;
+            }
+            try {
+                afterSeq = Long.parseLong(rmo.getParam("cursor"), 16);
+                if (afterSeq < 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_CURSOR);
+                return;
+            }
+            msgIds = flow.getUnackedMessageIds(afterSeq, limit);
+        }
+        int deleted = 0;
+        int notHeld = 0;
+        final int logEvery = RestQProps.getInt(Props.BROWSE_DELETE_LOG_EVERY);
+        try {
+            for (int i = 0; i < msgIds.size(); i++) {
+                if (flow.removeMessage(msgIds.get(i))) deleted++;
+                else notHeld++;
+                if ((i + 1) % logEvery == 0) {  // one reply per request, so this is the only progress there is
+                    logger.info("Browse-and-delete on flow {}: {} of {} done", flowId, i + 1, msgIds.size());
+                }
+            }
+            System.out.printf("Deleted %d messages from %s, %d not held%n", deleted, flow.getQueueName(), notHeld);
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("deleted", deleted);
+            job.add("notHeld", notHeld);
+            sendOkResponse(rmo.requestMessage, job.build().toString());
+        } catch (IllegalStateException e) {  // only ever on the first one
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.BROWSER_READ_ONLY);
+        } catch (JCSMPException | RuntimeException e) {
+            logger.error("Caught while deleting messages on flow {}, {} done", flowId, deleted, e);
+            ReturnValue rv = UsefulUtils.handleJcsmpException(e);
+            sendErrorResponse(rmo.requestMessage, rv.getHttpReturnCode(), "deleted " + deleted + " before failing: " + rv.getHttpReturnReason());
+        }
+    }
+    
+    /** export/<queue>?file=<name>&format=ndjson|lp&selector=<sel>&max=<N>, runs in the background and replies with a jobId */
+    private void exportQueue(RequestMessageObject rmo) {
+        final String queueName = rmo.resourceName;
+        // param check
+        if (!rmo.checkForMandatoryParams("file") || !rmo.checkForAllowedParams("file","format","selector","max")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final MessageFileFormat format = MessageFileFormat.fromParam(rmo.getParam("format"));
+        if (format == null) {
+            sendErrorResponse(rmo.requestMessage, 400, "format must be ndjson or lp");
+            return;
+        }
+        final Path file;
+        try {
+            file = AdminJob.resolveJobFile(rmo.getParam("file"));
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(rmo.requestMessage, 400, "file must be a plain file name, it goes in " + AdminJob.JOB_DIR);
+            return;
+        }
+        long max = Long.MAX_VALUE;
+        if (rmo.getParam("max") != null) {
+            try {
+                max = Long.parseLong(rmo.getParam("max"));
+                if (max < 1) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "max must be a positive number");
+                return;
+            }
+        }
+        final int maxFlows = RestQProps.getInt(Props.FLOW_MAX_PER_QUEUE);
+        if (browserManager.getBoundFlowCount(queueName) >= maxFlows) {
+            sendErrorResponse(rmo.requestMessage, 400, "queue " + queueName + " already has " + maxFlows + " bound flows");
+            return;
+        }
+        try {
+            BrowsableFlow flow = browserManager.connectToQueue(session, rmo);  // picks up the selector, if any
+            AdminJob job = new ExportJob("export-" + jobCount.incrementAndGet(), browserManager, flow, file, format, max);
+            jobs.put(job.jobId, job);
+            jobPool.submit(job);
+            sendOkResponse(rmo.requestMessage, job.toJson().toString(), 202, Collections.emptyMap());
+        } catch (JCSMPException e) {
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    /** import/<queue>?file=<name>&format=ndjson|lp&window=<N>, the other way; also runs in the background */
+    private void importQueue(RequestMessageObject rmo) {
+        final String queueName = rmo.resourceName;
+        // param check
+        if (!rmo.checkForMandatoryParams("file") || !rmo.checkForAllowedParams("file","format","window")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final MessageFileFormat format = MessageFileFormat.fromParam(rmo.getParam("format"));
+        if (format == null) {
+            sendErrorResponse(rmo.requestMessage, 400, "format must be ndjson or lp");
+            return;
+        }
+        final Path file;
+        try {
+            file = AdminJob.resolveJobFile(rmo.getParam("file"));
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(rmo.requestMessage, 400, "file must be a plain file name, it goes in " + AdminJob.JOB_DIR);
+            return;
+        }
+        if (!Files.isReadable(file)) {
+            sendErrorResponse(rmo.requestMessage, 404, "no such file in " + AdminJob.JOB_DIR);
+            return;
+        }
+        int window = ImportJob.DEFAULT_WINDOW;
+        if (rmo.getParam("window") != null) {
+            try {
+                window = Integer.parseInt(rmo.getParam("window"));
+                if (window < 1 || window > ImportJob.MAX_WINDOW) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "window must be between 1 and " + ImportJob.MAX_WINDOW);
+                return;
+            }
+        }
+        AdminJob job = new ImportJob("import-" + jobCount.incrementAndGet(), queueName, file, format, producer, window);
+        jobs.put(job.jobId, job);
+        jobPool.submit(job);
+        sendOkResponse(rmo.requestMessage, job.toJson().toString(), 202, Collections.emptyMap());
+    }
+    
+    /**
+     * send/<queueOrTopic>?destType=queue|topic&batch=true publishes the request body as a persistent message; or
+     * with batch=true, the body is a JSON array (or NDJSON) of receive()-style messages, up to MAX_SEND_BATCH of them.
+     * The sends happen on the publisher thread, and the reply goes back once the broker has ACKed or NACKed them all.
+     */
+    private void sendMessages(final RequestMessageObject rmo) {
+        if (!rmo.checkForAllowedParams("destType","batch")) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final Destination dest;
+        final String destType = rmo.getParam("destType");
+        if (destType == null || "queue".equals(destType)) {
+            dest = f.createQueue(rmo.resourceName);
+        } else if ("topic".equals(destType)) {
+            dest = f.createTopic(rmo.resourceName);
+        } else {
+            sendErrorResponse(rmo.requestMessage, 400, "destType must be queue or topic");
+            return;
+        }
+        final List<BytesXMLMessage> msgs;
+        if ("true".equals(rmo.getParam("batch"))) {
+            try {
+                msgs = MessageFileFormat.decodeAll(new String(MessageFileFormat.getPayloadBytes(rmo.requestMessage), StandardCharsets.UTF_8));
+            } catch (SDTException | RuntimeException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "could not parse batch: " + e.getMessage());
+                return;
+            }
+            if (msgs.isEmpty() || msgs.size() > MAX_SEND_BATCH) {
+                sendErrorResponse(rmo.requestMessage, 400, "a batch is 1 to " + MAX_SEND_BATCH + " messages");
+                return;
+            }
+        } else if (rmo.getParam("batch") == null || "false".equals(rmo.getParam("batch"))) {
+            msgs = Collections.singletonList(UsefulUtils.copyRequestBody(rmo.requestMessage));
+        } else {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.INVALID_URL_PARAMS);
+            return;
+        }
+        final AtomicInteger outstanding = new AtomicInteger(msgs.size());
+        final Map<Integer,String> failures = new ConcurrentSkipListMap<>();  // index -> why, in order
+        final Runnable done = new Runnable() {  // whoever brings outstanding to 0 replies
+            @Override
+            public void run() {
+                if (failures.isEmpty()) {
+                    sendOkResponse(rmo.requestMessage, Json.createObjectBuilder().add("sent", msgs.size()).build().toString());
+                } else {
+                    Map.Entry<Integer,String> first = failures.entrySet().iterator().next();
+                    sendErrorResponse(rmo.requestMessage, 502, String.format("sent %d of %d, failed indexes %s, first failure: %s",
+                            msgs.size() - failures.size(), msgs.size(), failures.keySet(), first.getValue()));
+                }
+            }
+        };
+        FlowManager.publishPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < msgs.size(); i++) {
+                    final int index = i;
+                    final BytesXMLMessage msg = msgs.get(i);
+                    msg.setDeliveryMode(DeliveryMode.PERSISTENT);
+                    msg.setCorrelationKey(new PublishCallback() {
+                        @Override
+                        public void onPublished() {
+                            if (outstanding.decrementAndGet() == 0) done.run();
+                        }
+
+                        @Override
+                        public void onPublishFailed(JCSMPException cause) {
+                            failures.put(index, cause.toString());
+                            if (outstanding.decrementAndGet() == 0) done.run();
+                        }
+                    });
+                    try {
+                        producer.send(msg, dest);  // only blocks when the publish window is full
+                    } catch (JCSMPException | RuntimeException e) {  // no callback coming for this one
+                        logger.error("Couldn't send message {} of {} to {}", index, msgs.size(), dest, e);
+                        failures.put(index, e.toString());
+                        if (outstanding.decrementAndGet() == 0) done.run();
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * commit/<flowId> on a transacted flow, with a JSON body {"msgIds":[...], "publish":[...]}, both optional: ACKs
+     * everything received since the last commit (msgIds, if given, has to list all of it) and publishes the
+     * receive()-style messages in "publish" to their "destination" (a Queue unless "destinationType" says Topic),
+     * all in one broker transaction.
+     */
+    private void commitFlow(RequestMessageObject rmo) {
+        final String flowId = rmo.resourceName;
+        if (!rmo.requestParams.isEmpty()) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.URL_PARAMS_NOT_EMPTY);
+            return;
+        }
+        Flow found = flowManager.getFlowFromId(flowId);
+        if (found == null || found.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(flowId));
+            return;
+        }
+        if (!(found instanceof TransactedFlow)) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_NOT_TRANSACTED);
+            return;
+        }
+        TransactedFlow flow = (TransactedFlow)found;
+        Set<String> msgIds = null;
+        final List<Map.Entry<Destination,BytesXMLMessage>> publishes = new ArrayList<>();
+        String body = new String(MessageFileFormat.getPayloadBytes(rmo.requestMessage), StandardCharsets.UTF_8);
+        if (!body.trim().isEmpty()) {
+            try (JsonReader reader = Json.createReader(new StringReader(body))) {
+                JsonObject json = reader.readObject();
+                if (json.containsKey("msgIds")) {
+                    msgIds = new HashSet<>();
+                    for (JsonString msgId : json.getJsonArray("msgIds").getValuesAs(JsonString.class)) {
+                        msgIds.add(msgId.getString());
+                    }
+                }
+                if (json.containsKey("publish")) {
+                    for (JsonObject publish : json.getJsonArray("publish").getValuesAs(JsonObject.class)) {
+                        String destName = publish.getString("destination");  // NPE if missing
+                        Destination dest = "Topic".equals(publish.getString("destinationType", "Queue")) ? f.createTopic(destName) : f.createQueue(destName);
+                        publishes.add(new SimpleImmutableEntry<>(dest, MessageFileFormat.decode(publish, null)));
+                    }
+                }
+            } catch (SDTException | RuntimeException e) {
+                sendErrorResponse(rmo.requestMessage, 400, "could not parse commit: " + e);
+                return;
+            }
+            if (publishes.size() > MAX_SEND_BATCH) {
+                sendErrorResponse(rmo.requestMessage, 400, "at most " + MAX_SEND_BATCH + " messages per commit");
+                return;
+            }
+        }
+        try {
+            int acked = flow.commit(msgIds, publishes);
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("acked", acked);
+            job.add("published", publishes.size());
+            sendOkResponse(rmo.requestMessage, job.build().toString());
+        } catch (IllegalStateException e) {  // msgIds didn't match, nothing done
+            sendErrorResponse(rmo.requestMessage, 409, e.getMessage());
+        } catch (RollbackException e) {
+            sendErrorResponse(rmo.requestMessage, 409, "rolled back, nothing was published and the messages will be redelivered: " + e.getMessage());
+        } catch (JCSMPException | RuntimeException e) {
+            logger.error("Caught while committing flow {}", flowId, e);
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    /** rollback/<flowId>: everything received since the last commit goes back to be redelivered */
+    private void rollbackFlow(RequestMessageObject rmo) {
+        if (!rmo.requestParams.isEmpty()) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.URL_PARAMS_NOT_EMPTY);
+            return;
+        }
+        Flow flow = flowManager.getFlowFromId(rmo.resourceName);
+        if (flow == null || flow.isClosed()) {
+            sendErrorResponse(rmo.requestMessage, unknownFlowError(rmo.resourceName));
+            return;
+        }
+        if (!(flow instanceof TransactedFlow)) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.FLOW_NOT_TRANSACTED);
+            return;
+        }
+        try {
+            ((TransactedFlow)flow).rollback();
+            sendOkResponse(rmo.requestMessage);
+        } catch (JCSMPException | RuntimeException e) {
+            logger.error("Caught while rolling back flow {}", rmo.resourceName, e);
+            sendErrorResponse(rmo.requestMessage, UsefulUtils.handleJcsmpException(e));
+        }
+    }
+    
+    private void getJobStatus(RequestMessageObject rmo) {
+        if (!rmo.requestParams.isEmpty()) {
+            sendErrorResponse(rmo.requestMessage, ErrorTypes.URL_PARAMS_NOT_EMPTY);
+            return;
+        }
+        AdminJob job = jobs.get(rmo.resourceName);
+        if (job == null) {
+            sendErrorResponse(rmo.requestMessage, 404, "no such job");
+            return;
+        }
+        sendOkResponse(rmo.requestMessage, job.toJson().toString());
+    }
+    
     /*
 Messaging Mode + Solace-Reply-Wait-Time-In-ms
 ^^^^^^^^^^^^^^^^^^ Start Message ^^^^^^^^^^^^^^^^^^^^^^^^^^^
@@ -622,8 +1417,10 @@ User Property Map:                      4 entries
     
     @Override
     public void onReceive(BytesXMLMessage requestMessage) {
-        System.out.printf(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>%nREQUEST MESSAGE:%n");
-        System.out.println(requestMessage.dump());
+        if (sampleDump()) {
+            System.out.printf(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>%nREQUEST MESSAGE:%n");
+            System.out.println(requestMessage.dump());
+        }
 //        System.out.println(">>> "+requestMessage.getDestination().getName());
         if (requestMessage.getDestination() instanceof Queue) {
             logger.error("GOT A QUEUE MESSAGE WHAAAAAAAT?");
@@ -637,6 +1434,81 @@ User Property Map:                      4 entries
         }
         String topic = requestMessage.getDestination().getName();
         // e.g. topic == POST/restQ/bind/q1
+        // turn away what we're not going to handle before doing any real work on it
+        if (isShutdown || !admission.tryEnter()) {
+            sendErrorResponse(requestMessage, ErrorTypes.SERVER_BUSY.getCode(), ErrorTypes.SERVER_BUSY.getMessage(),
+                    Collections.singletonMap("Retry-After", "1"));
+            return;
+        }
+        boolean handedOff = false;
+        try {
+            String[] levels = topic.split("/",4);
+            String flowId = levels.length == 4 && FlowManager.registry.lookup(levels[3]) != null ? levels[3] : null;
+            long waitMs = admission.admit(flowId, AdmissionControl.getUsername(requestMessage));
+            if (waitMs > 0) {
+                sendErrorResponse(requestMessage, ErrorTypes.TOO_MANY_REQUESTS.getCode(), ErrorTypes.TOO_MANY_REQUESTS.getMessage(),
+                        Collections.singletonMap("Retry-After", AdmissionControl.retryAfterSec(waitMs)));
+                return;
+            }
+            // most requests block on the broker somewhere, so never on the JCSMP dispatcher thread
+            requestPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleRequest(requestMessage, topic);
+                    } catch (RuntimeException e) {
+                        logger.error("Unexpected error handling {}", topic, e);
+                        sendErrorResponse(requestMessage, 500, "internal error");
+                    } finally {
+                        admission.exit();  // the permit is held until the request is actually done
+                    }
+                }
+            });
+            handedOff = true;
+        } catch (RejectedExecutionException e) {  // shutting down
+            sendErrorResponse(requestMessage, ErrorTypes.SERVER_BUSY.getCode(), ErrorTypes.SERVER_BUSY.getMessage(),
+                    Collections.singletonMap("Retry-After", "1"));
+        } finally {
+            if (!handedOff) admission.exit();
+        }
+    }
+
+    private void handleRequest(BytesXMLMessage requestMessage, String topic) {
+        String key = isRetrySensitive(topic) ? ReplyCache.keyFor(topic, requestMessage) : null;
+        if (key == null) {
+            dispatchRequest(requestMessage, topic);
+            return;
+        }
+        BytesXMLMessage cachedReply;
+        try {  // have we already answered this one, or are we answering it right now?
+            cachedReply = replyCache.claim(key, requestMessage, RestQProps.getInt(Props.REPLY_CACHE_IN_FLIGHT_WAIT_MS));
+        } catch (TimeoutException e) {
+            sendErrorResponse(requestMessage, ErrorTypes.REQUEST_IN_PROGRESS.getCode(), ErrorTypes.REQUEST_IN_PROGRESS.getMessage(),
+                    Collections.singletonMap("Retry-After", "1"));
+            return;
+        } catch (InterruptedException e) {  // shutting down
+            Thread.currentThread().interrupt();
+            sendErrorResponse(requestMessage, ErrorTypes.SERVER_BUSY.getCode(), ErrorTypes.SERVER_BUSY.getMessage(),
+                    Collections.singletonMap("Retry-After", "1"));
+            return;
+        }
+        if (cachedReply != null) {
+            System.out.println("Replaying cached reply for retried request "+key);
+            try {
+                sendReply(requestMessage, cachedReply);
+            } catch (JCSMPException e) {
+                logger.error("Cannot replay a cached response message!",e);
+            }
+            return;
+        }
+        try {
+            dispatchRequest(requestMessage, topic);
+        } finally {  // normally the reply has already done() it, this is in case there wasn't one
+            if (!topic.startsWith("POST/restQ/send/")) replyCache.done(key, requestMessage);  // send replies later, from its publish callbacks
+        }
+    }
+
+    private void dispatchRequest(BytesXMLMessage requestMessage, String topic) {
         if (topic.split("/").length < 4) {
             sendErrorResponse(requestMessage, 400, "incorrect topic / URL");
             return;
@@ -662,6 +1534,14 @@ User Property Map:                      4 entries
             assert false;
             return;
         }
+        if (topic.startsWith("POST/restQ/send/")) {  // the payload is the message, not params
+            sendMessages(new RequestMessageObject(resourceName, requestMessage, urlParams));
+            return;
+        }
+        if (topic.startsWith("POST/restQ/commit/")) {  // same, the payload is what to commit
+            commitFlow(new RequestMessageObject(resourceName, requestMessage, urlParams));
+            return;
+        }
         // maybe we have some payload values?
         if (requestMessage instanceof TextMessage
                 && requestMessage.getHTTPContentType().equals("application/json")
@@ -698,16 +1578,42 @@ User Property Map:                      4 entries
             ackMessage(rmo);
         }
         //////////////////////////
+        // NACK consumed message(s), give them back to the queue
+        else if (topic.startsWith("DELETE/restQ/nack/")) {
+            nackMessage(rmo);
+        }
+        //////////////////////////
         // UNBIND FROM QUEUE 
         else if (topic.startsWith("DELETE/restQ/unbind/")) {
             unbindFromQueue(rmo);
         }
         /////////////////////////////////////
         // BROWSE TO A QUEUE
-        else if (topic.startsWith("GET/restQ/browse/")) {
+        else if (topic.startsWith("GET/restQ/browse/") || topic.startsWith("POST/restQ/browse/")) {  // POST can delete too
             browseToQueue(rmo);
         }
         ////////////////////////////
+        // ADMIN JOBS
+        else if (topic.startsWith("POST/restQ/export/")) {
+            exportQueue(rmo);
+        }
+        else if (topic.startsWith("POST/restQ/import/")) {
+            importQueue(rmo);
+        }
+        else if (topic.startsWith("GET/restQ/job/")) {
+            getJobStatus(rmo);
+        }
+        ////////////////////////////
+        // TRANSACTED FLOWS (commit is dispatched above, its payload isn't params)
+        else if (topic.startsWith("POST/restQ/rollback/")) {
+            rollbackFlow(rmo);
+        }
+        ////////////////////////////
+        // BROWSER DELETE!
+        else if (topic.startsWith("DELETE/restQ/del/")) {
+            deleteMessages(rmo);
+        }
+        ////////////////////////////
         // BROWSER GET NEXT!
         else if (topic.startsWith("GET/restQ/next/")) {
             getNext(rmo);
@@ -760,7 +1666,7 @@ User Property Map:                      4 entries
         System.out.printf("### MessageListener's Direct onException(): %s%n",e);
         e.printStackTrace();
         if (e instanceof JCSMPTransportException) {  // all reconnect attempts failed
-            isShutdown = true;  // let's quit; or, could initiate a new connection attempt
+            stopRequested.countDown();  // let's quit; or, could initiate a new connection attempt
         }
     
     }
@@ -0,0 +1,21 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.Destination;
+import com.solacesystems.jcsmp.JCSMPException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** a consumer flow bound with transacted=true: nothing is ACKed one at a time, it all goes in the next commit */
+public interface TransactedFlow extends Flow {
+
+    /**
+     * ACK everything received since the last commit and publish these, all or nothing; returns how many were ACKed.
+     * msgIds (if not null) has to be exactly what's held, since the commit ACKs all of it regardless.
+     */
+    public int commit(Set<String> msgIds, List<Map.Entry<Destination,BytesXMLMessage>> publishes) throws JCSMPException;
+    
+    /** undo everything since the last commit; the received messages will be redelivered */
+    public void rollback() throws JCSMPException;
+}
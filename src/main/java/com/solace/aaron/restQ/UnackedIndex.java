@@ -0,0 +1,145 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A flow's unacked messages, in a ring buffer indexed by their per-flow sequence number.  The index hands
+ * out the sequence numbers itself, so they only ever go up and insert, lookup and remove are all O(1) with
+ * no boxing or hashing.  Anything removed from the middle just leaves a hole that the head skips over later.
+ * <p>
+ * The ring has to span from the oldest message still held to the newest, so one message that nobody ACKs
+ * keeps it wide (8 bytes a slot) until it's ACKed, released, or its visibility timeout is up.
+ * Thread-safe, everything is synchronized on the index.
+ */
+final class UnackedIndex {
+
+    private static final int MIN_CAPACITY = 16;  // always a power of 2
+
+    private UnackedMessage[] ring = new UnackedMessage[MIN_CAPACITY];
+    private long nextSeq = 1;  // what the next message gets
+    private long headSeq = 1;  // everything before this is gone; the slot for headSeq is in use, unless we're empty
+    private int size = 0;
+
+    private int slot(long seq) {
+        return (int)(seq & (ring.length - 1));
+    }
+
+    /** a new message to track */
+    synchronized UnackedMessage add(BytesXMLMessage msg, String queueName) {
+        final long seq = nextSeq++;
+        if (seq - headSeq >= ring.length) resize(ring.length * 2);
+        UnackedMessage unacked = new UnackedMessage(seq, msg, queueName, true);
+        ring[slot(seq)] = unacked;
+        size++;
+        return unacked;
+    }
+
+    /** a new message that still needs a msgId, but isn't going to be tracked (e.g. already auto-ACKed) */
+    synchronized UnackedMessage skip(BytesXMLMessage msg, String queueName) {
+        final long seq = nextSeq++;
+        if (size == 0) headSeq = nextSeq;
+        return new UnackedMessage(seq, msg, queueName, false);
+    }
+
+    synchronized UnackedMessage get(long seq) {
+        if (seq < headSeq || seq >= nextSeq) return null;
+        return ring[slot(seq)];
+    }
+
+    /** the message with this msgId, if we're holding it: right seq, and the right tag */
+    synchronized UnackedMessage get(String msgId) {
+        UnackedMessage unacked = get(FlowRegistry.parseMsgSeq(msgId));
+        return unacked != null && unacked.msgId.equals(msgId) ? unacked : null;
+    }
+
+    synchronized UnackedMessage remove(String msgId) {
+        UnackedMessage unacked = get(msgId);
+        if (unacked != null) removeAt(unacked.seq);
+        return unacked;
+    }
+
+    /** cumulative: everything held up to and including this seq, oldest first */
+    synchronized List<UnackedMessage> removeUpTo(long seq) {
+        List<UnackedMessage> removed = new ArrayList<>();
+        final long last = Math.min(seq, nextSeq - 1);
+        while (size > 0 && headSeq <= last) {  // the head is always in use, so this is one removal per pass
+            UnackedMessage unacked = ring[slot(headSeq)];
+            removed.add(unacked);
+            removeAt(headSeq);
+        }
+        return removed;
+    }
+
+    private void removeAt(long seq) {
+        UsefulUtils.renderCache.remove(ring[slot(seq)]);  // nobody can getMsg it any more
+        ring[slot(seq)] = null;
+        size--;
+        if (size == 0) {
+            headSeq = nextSeq;
+        } else if (seq == headSeq) {
+            while (ring[slot(headSeq)] == null) headSeq++;  // skip the holes, each one only once
+        }
+        if (ring.length > MIN_CAPACITY && nextSeq - headSeq < ring.length / 4) resize(ring.length / 2);
+    }
+
+    /** the oldest one, or null if we're empty */
+    synchronized UnackedMessage removeOldest() {
+        if (size == 0) return null;
+        UnackedMessage unacked = ring[slot(headSeq)];
+        removeAt(headSeq);
+        return unacked;
+    }
+
+    /** the newest seq handed out so far, held or not; 0 if none yet */
+    synchronized long getLastSeq() {
+        return nextSeq - 1;
+    }
+
+    /** up to limit held messages with seq greater than afterSeq, oldest first; afterSeq 0 for the oldest ones */
+    synchronized List<UnackedMessage> list(long afterSeq, int limit) {
+        List<UnackedMessage> page = new ArrayList<>(Math.min(limit, size));
+        for (long seq = Math.max(afterSeq + 1, headSeq); seq < nextSeq && page.size() < limit; seq++) {
+            UnackedMessage unacked = ring[slot(seq)];
+            if (unacked != null) page.add(unacked);
+        }
+        return page;
+    }
+
+    /** all of them, oldest first */
+    synchronized List<UnackedMessage> list() {
+        return list(0, size);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void clear() {
+        for (UnackedMessage unacked : list()) {
+            UsefulUtils.renderCache.remove(unacked);
+        }
+        ring = new UnackedMessage[MIN_CAPACITY];
+        headSeq = nextSeq;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        while (nextSeq - headSeq > capacity) capacity *= 2;
+        UnackedMessage[] old = ring;
+        ring = new UnackedMessage[capacity];
+        for (long seq = headSeq; seq < nextSeq; seq++) {
+            ring[slot(seq)] = old[(int)(seq & (old.length - 1))];
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d unacked, seq %d..%d", size, headSeq, nextSeq - 1);
+    }
+}
@@ -0,0 +1,43 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * A message that has been handed out to a REST client but not ACKed yet, along with where it came from.
+ */
+class UnackedMessage {
+
+    final long seq;      // per-flow, what the flow keys it on
+    final String msgId;  // what the client sees, see FlowRegistry
+    final BytesXMLMessage msg;
+    final String queueName;  // the actual queue it came off, matters for a fan-in flow
+    final boolean tracked;   // false if it was auto-ACKed, so nobody can ask for it again
+    private volatile long visibleUntilMs = 0;  // SQS-style visibility timeout: released automatically after this, 0 means never
+
+    UnackedMessage(long seq, BytesXMLMessage msg, String queueName, boolean tracked) {
+        this.seq = seq;
+        this.msgId = FlowRegistry.newMsgId(seq);
+        this.msg = msg;
+        this.queueName = queueName;
+        this.tracked = tracked;
+    }
+    
+    /** (re)start the visibility timeout from now; 0 means hold onto it until the flow closes */
+    void setVisibilityTimeout(int seconds) {
+        visibleUntilMs = seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : 0;
+    }
+    
+    /** when the visibility timeout is up, 0 if it hasn't got one */
+    long getVisibleUntilMs() {
+        return visibleUntilMs;
+    }
+    
+    boolean isExpired(long nowMs) {
+        return visibleUntilMs > 0 && nowMs >= visibleUntilMs;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s (from %s)", msgId, queueName);
+    }
+}
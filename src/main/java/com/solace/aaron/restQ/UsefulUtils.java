@@ -1,5 +1,6 @@
 package com.solace.aaron.restQ;
 
+import com.solace.aaron.restQ.RestQProps.Props;
 import com.solacesystems.common.util.ByteArray;
 import com.solacesystems.jcsmp.BytesMessage;
 import com.solacesystems.jcsmp.BytesXMLMessage;
@@ -28,96 +29,125 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.JsonStructure;
+import javax.json.JsonValue;
 import javax.json.JsonWriter;
 import javax.json.JsonWriterFactory;
 import javax.json.stream.JsonGenerator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 public class UsefulUtils {
 
     private static final JCSMPFactory f = JCSMPFactory.onlyInstance();
+    private static final Logger logger = LogManager.getLogger();  // log4j2, but could also use SLF4J, JCL, etc.
     
 
-    @SuppressWarnings("deprecation")
     static JsonStructure solaceMsgToJson(BytesXMLMessage msg) {
+        return solaceMsgToJson(msg, null);
+    }
+
+    /** only the fields asked for (all of them if null), and the rest aren't even looked at */
+    @SuppressWarnings("deprecation")
+    static JsonStructure solaceMsgToJson(BytesXMLMessage msg, FieldSelection fields) {
+        final boolean all = fields == null;
         JsonObjectBuilder job = Json.createObjectBuilder();
         // topic or queue
-        job.add("destination",msg.getDestination().getName());
-        job.add("destinationType", msg.getDestination() instanceof Topic ? "Topic" : "Queue");
+        if (msg.getDestination() != null) {  // not on one we made ourselves, e.g. from a send() body
+            if (all || fields.has("destination")) job.add("destination",msg.getDestination().getName());
+            if (all || fields.has("destinationType")) job.add("destinationType", msg.getDestination() instanceof Topic ? "Topic" : "Queue");
+        }
 
         // metadata / headers
-        if (msg.getApplicationMessageId() != null) {
+        if ((all || fields.has("applicationMessageId")) && msg.getApplicationMessageId() != null) {
             job.add("applicationMessageId",msg.getApplicationMessageId());
         }
-        if (msg.getApplicationMessageType() != null) job.add("applicationMessageType",msg.getApplicationMessageType());
-        if (msg.getConsumerIdList() != null && !msg.getConsumerIdList().isEmpty()) {
+        if ((all || fields.has("applicationMessageType")) && msg.getApplicationMessageType() != null) job.add("applicationMessageType",msg.getApplicationMessageType());
+        if ((all || fields.has("consumerIdList")) && msg.getConsumerIdList() != null && !msg.getConsumerIdList().isEmpty()) {
             JsonArrayBuilder jab = Json.createArrayBuilder();
             for (Long l : msg.getConsumerIdList()) {
                 jab.add(l);
             }
             job.add("consumerIdList", jab.build());
         }
-        if (msg.getContentLength() > 0) job.add("contentLength", msg.getContentLength());
-        if (msg.getCorrelationId() != null) job.add("correlationId",msg.getCorrelationId());
-        job.add("cos", msg.getCos().toString());
-        try {
-            job.add("deliveryCount", msg.getDeliveryCount());
-        } catch (UnsupportedOperationException e) {
-            // ignore
+        if ((all || fields.has("contentLength")) && msg.getContentLength() > 0) job.add("contentLength", msg.getContentLength());
+        if ((all || fields.has("correlationId")) && msg.getCorrelationId() != null) job.add("correlationId",msg.getCorrelationId());
+        if (all || fields.has("cos")) job.add("cos", msg.getCos().toString());
+        if (all || fields.has("deliveryCount")) {
+            try {
+                job.add("deliveryCount", msg.getDeliveryCount());
+            } catch (UnsupportedOperationException e) {
+                // ignore
+            }
         }
-        job.add("deliveryMode", msg.getDeliveryMode().toString());
-        if (msg.isDMQEligible()) job.add("dmqEligible", msg.isDMQEligible());
-        if (msg.getExpiration() > 0) job.add("expiration", msg.getExpiration());
-        if (msg.getHTTPContentEncoding() != null) job.add("httpContentEncoding", msg.getHTTPContentEncoding());
-        if (msg.getHTTPContentType() != null) job.add("httpContentType", msg.getHTTPContentType());
-        if (msg.getMessageId() != null) job.add("mesageId", msg.getMessageId());  // deprecated, but still dump it out
-        job.add("priority",msg.getPriority());
-        if (msg.getRedelivered()) job.add("redelivered", msg.getRedelivered());
-        if (msg.getReplicationGroupMessageId() != null) job.add("replicationGroupMessageId", msg.getReplicationGroupMessageId().toString());
-        if (msg.isReplyMessage()) job.add("replyMessage", msg.isReplyMessage());
-        if (msg.getReplyTo() != null) job.add("replyTo",msg.getReplyTo().getName());
-        if (msg.getSenderId() != null) job.add("senderId",msg.getSenderId());
-        if (msg.getSenderTimestamp() != null) job.add("senderTimestamp",msg.getSenderTimestamp());
-        if (msg.getSequenceNumber() != null) job.add("sequenceNumber",msg.getSequenceNumber());
-        if (msg.getTimeToLive() > 0) job.add("timeToLive", msg.getTimeToLive());
+        if (all || fields.has("deliveryMode")) job.add("deliveryMode", msg.getDeliveryMode().toString());
+        if ((all || fields.has("dmqEligible")) && msg.isDMQEligible()) job.add("dmqEligible", msg.isDMQEligible());
+        if ((all || fields.has("expiration")) && msg.getExpiration() > 0) job.add("expiration", msg.getExpiration());
+        if ((all || fields.has("httpContentEncoding")) && msg.getHTTPContentEncoding() != null) job.add("httpContentEncoding", msg.getHTTPContentEncoding());
+        if ((all || fields.has("httpContentType")) && msg.getHTTPContentType() != null) job.add("httpContentType", msg.getHTTPContentType());
+        if ((all || fields.has("mesageId")) && msg.getMessageId() != null) job.add("mesageId", msg.getMessageId());  // deprecated, but still dump it out
+        if (all || fields.has("priority")) job.add("priority",msg.getPriority());
+        if ((all || fields.has("redelivered")) && msg.getRedelivered()) job.add("redelivered", msg.getRedelivered());
+        if ((all || fields.has("replicationGroupMessageId")) && msg.getReplicationGroupMessageId() != null) job.add("replicationGroupMessageId", msg.getReplicationGroupMessageId().toString());
+        if ((all || fields.has("replyMessage")) && msg.isReplyMessage()) job.add("replyMessage", msg.isReplyMessage());
+        if ((all || fields.has("replyTo")) && msg.getReplyTo() != null) job.add("replyTo",msg.getReplyTo().getName());
+        if ((all || fields.has("senderId")) && msg.getSenderId() != null) job.add("senderId",msg.getSenderId());
+        if ((all || fields.has("senderTimestamp")) && msg.getSenderTimestamp() != null) job.add("senderTimestamp",msg.getSenderTimestamp());
+        if ((all || fields.has("sequenceNumber")) && msg.getSequenceNumber() != null) job.add("sequenceNumber",msg.getSequenceNumber());
+        if ((all || fields.has("timeToLive")) && msg.getTimeToLive() > 0) job.add("timeToLive", msg.getTimeToLive());
 
         // properties
-        if (msg.getProperties() != null) job.add("properties", sdtMapToJson(msg.getProperties()));
+        if ((all || fields.has("properties")) && msg.getProperties() != null) {
+            job.add("properties", sdtMapToJson(msg.getProperties(), all ? null : fields.getPropertyNames()));
+        }
 
         // payload
+        final boolean withClass = all || fields.has("messageClass");
+        final boolean withPayload = all || fields.has("payload");
         if (msg instanceof TextMessage) {
-            job.add("messageClass", "TextMessage");
+            if (withClass) job.add("messageClass", "TextMessage");
             // let's test to see if it's JSON..!?!?
-            try {
-                JsonReader reader = Json.createReader(new StringReader(((TextMessage)msg).getText()));
-                job.add("payload", reader.read());
-            } catch (RuntimeException e) {  // nope!
-                job.add("payload", ((TextMessage)msg).getText());
+            if (withPayload) {
+                try {
+                    JsonReader reader = Json.createReader(new StringReader(((TextMessage)msg).getText()));
+                    job.add("payload", reader.read());
+                } catch (RuntimeException e) {  // nope!
+                    job.add("payload", ((TextMessage)msg).getText());
+                }
             }
         } else if (msg instanceof BytesMessage) {
-            job.add("messageClass", "BytesMessage");
-            job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
+            if (withClass) job.add("messageClass", "BytesMessage");
+            if (withPayload) job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
         } else if (msg instanceof MapMessage) {
-            job.add("messageClass", "MapMessage");
-            job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
+            if (withClass) job.add("messageClass", "MapMessage");
+            if (withPayload) job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
         } else if (msg instanceof StreamMessage) {
-            job.add("messageClass", "StreamMessage");
-            job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
+            if (withClass) job.add("messageClass", "StreamMessage");
+            if (withPayload) job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
         } else {
-            job.add("messageClass", msg.getClass().getName());
-            job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
+            if (withClass) job.add("messageClass", msg.getClass().getName());
+            if (withPayload) job.add("payload", new String(Base64.getEncoder().encode(msg.getAttachmentByteBuffer().array())));
         }
         return job.build();
     }
     
     static JsonStructure sdtMapToJson(SDTMap map) {
+        return sdtMapToJson(map, null);
+    }
+
+    /** just these keys (the ones that are there), or all of them if null */
+    static JsonStructure sdtMapToJson(SDTMap map, Set<String> keys) {
         JsonObjectBuilder job = Json.createObjectBuilder();
         try {
-            for (String key : map.keySet()) {
+            for (String key : keys == null ? map.keySet() : keys) {
+                if (keys != null && !map.containsKey(key)) continue;
                 Object o = map.get(key);
                 if (o instanceof String) {
                     job.add(key, (String)o);
@@ -156,6 +186,68 @@ public class UsefulUtils {
         return job.build();
     }
 
+    /** the other way, e.g. for re-publishing exported messages; JSON numbers come back as int, long or double */
+    static SDTMap jsonToSdtMap(JsonObject json) throws SDTException {
+        SDTMap map = f.createMap();
+        for (String key : json.keySet()) {
+            JsonValue value = json.get(key);
+            switch (value.getValueType()) {
+            case STRING:
+                map.putString(key, ((JsonString)value).getString());
+                break;
+            case NUMBER:
+                JsonNumber number = (JsonNumber)value;
+                if (!number.isIntegral()) map.putDouble(key, number.doubleValue());
+                else if (number.longValue() == number.intValue()) map.putInteger(key, number.intValue());
+                else map.putLong(key, number.longValue());
+                break;
+            case TRUE:
+            case FALSE:
+                map.putBoolean(key, value == JsonValue.TRUE);
+                break;
+            case OBJECT:
+                map.putMap(key, jsonToSdtMap((JsonObject)value));
+                break;
+            case ARRAY:
+                map.putStream(key, jsonToSdtStream((JsonArray)value));
+                break;
+            default:  // null, skip it
+                break;
+            }
+        }
+        return map;
+    }
+
+    static SDTStream jsonToSdtStream(JsonArray json) throws SDTException {
+        SDTStream stream = f.createStream();
+        for (JsonValue value : json) {
+            switch (value.getValueType()) {
+            case STRING:
+                stream.writeString(((JsonString)value).getString());
+                break;
+            case NUMBER:
+                JsonNumber number = (JsonNumber)value;
+                if (!number.isIntegral()) stream.writeDouble(number.doubleValue());
+                else if (number.longValue() == number.intValue()) stream.writeInteger(number.intValue());
+                else stream.writeLong(number.longValue());
+                break;
+            case TRUE:
+            case FALSE:
+                stream.writeBoolean(value == JsonValue.TRUE);
+                break;
+            case OBJECT:
+                stream.writeMap(jsonToSdtMap((JsonObject)value));
+                break;
+            case ARRAY:
+                stream.writeStream(jsonToSdtStream((JsonArray)value));
+                break;
+            default:
+                break;
+            }
+        }
+        return stream;
+    }
+
     static JsonStructure sdtStreamToJson(SDTStream stream) {
         JsonArrayBuilder jab = Json.createArrayBuilder();
         try {
@@ -259,6 +351,40 @@ public class UsefulUtils {
         }
     }
 
+    /**
+     * A bind can be to one queue, a comma-separated list of queues ("q1,q2,q3"), or a prefix plus a
+     * partition count ("orders.p" with partitions=16 means orders.p0 .. orders.p15).
+     * @throws IllegalArgumentException if the list is empty, too long, or the partition count is bogus
+     */
+    static List<String> parseQueueNames(String resourceName, String partitions) throws IllegalArgumentException {
+        List<String> queueNames = new ArrayList<>();
+        final int maxQueues = RestQProps.getInt(Props.MAX_FAN_IN_QUEUES);
+        if (partitions != null) {
+            final int count;
+            try {
+                count = Integer.parseInt(partitions);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("partitions must be a number");
+            }
+            if (count < 1 || count > maxQueues) {
+                throw new IllegalArgumentException("partitions must be between 1 and "+maxQueues);
+            }
+            for (int i = 0; i < count; i++) {
+                queueNames.add(resourceName + i);
+            }
+        } else {
+            for (String queueName : resourceName.split(",")) {
+                queueName = queueName.trim();
+                if (!queueName.isEmpty() && !queueNames.contains(queueName)) queueNames.add(queueName);
+            }
+            if (queueNames.isEmpty()) throw new IllegalArgumentException("no queue name");
+            if (queueNames.size() > maxQueues) {
+                throw new IllegalArgumentException("can't bind to more than "+maxQueues+" queues");
+            }
+        }
+        return queueNames;
+    }
+
     boolean verifyParmas(Map<String, List<String>> urlParams, Set<String> accepted) {
         return urlParams.keySet().equals(accepted);
     }
@@ -266,29 +392,125 @@ public class UsefulUtils {
 
     
     
-    static BytesXMLMessage formatResponseMessage(BytesXMLMessage msg, RequestMessageObject rmo) {
-        if ("pretty".equals(rmo.getParam("format"))) {
-            TextMessage outMsg = f.createMessage(TextMessage.class);
+    static final RenderCache renderCache = new RenderCache(getRenderCacheBudgetBytes());  // shared by every flow
+    static {
+        RestQProps.addReloadListener(new Runnable() {
+            @Override
+            public void run() {
+                renderCache.setBudgetBytes(getRenderCacheBudgetBytes());
+            }
+        });
+    }
+    
+    private static long getRenderCacheBudgetBytes() {
+        return RestQProps.getInt(Props.RENDER_CACHE_BUDGET_MB) * 1024L * 1024;
+    }
+    
+    /**
+     * same as below, but held messages keep their rendered text around for the next time somebody asks; not
+     * projected ones though (fields not null), they're cheap and every client asks for something different
+     */
+    static BytesXMLMessage formatResponseMessage(UnackedMessage unacked, String format, FieldSelection fields) {
+        if (!unacked.tracked || fields != null) return formatResponseMessage(unacked.msg, unacked.msgId, format, fields);  // nobody will ask again
+        String text = renderCache.get(unacked, format);
+        if (text == null) {
+            text = renderResponseText(unacked.msg, unacked.msgId, format, null);
+            renderCache.put(unacked, format, text);
+        }
+        TextMessage outMsg = f.createMessage(TextMessage.class);
+        outMsg.setText(text);
+        return outMsg;
+    }
+    
+    static BytesXMLMessage formatResponseMessage(BytesXMLMessage msg, String msgId, String format, FieldSelection fields) {
+        TextMessage outMsg = f.createMessage(TextMessage.class);
+        outMsg.setText(renderResponseText(msg, msgId, format, fields));
+        return outMsg;
+    }
+    
+    /** a page of browsed messages, and the cursor (if any) to ask for the page after it */
+    static BytesXMLMessage formatResponsePage(List<UnackedMessage> page, String cursor, String format, FieldSelection fields) {
+        JsonArrayBuilder jab = Json.createArrayBuilder();
+        for (UnackedMessage browsed : page) {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("msgId", browsed.msgId);
+            job.add("message", UsefulUtils.solaceMsgToJson(browsed.msg, fields));
+            jab.add(job);
+        }
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        job.add("messages", jab);
+        if (cursor != null) job.add("cursor", cursor);
+        TextMessage outMsg = f.createMessage(TextMessage.class);
+        outMsg.setText(("pretty".equals(format) ? UsefulUtils.prettyPrint(job.build()) : job.build().toString()) + "\n");
+        outMsg.setHTTPContentType("application/json");
+        return outMsg;
+    }
+    
+    /** fields is ignored for dump, it's the whole thing or nothing */
+    private static String renderResponseText(BytesXMLMessage msg, String msgId, String format, FieldSelection fields) {
+        if ("pretty".equals(format)) {
             JsonObjectBuilder job = Json.createObjectBuilder();
-            job.add("msgId", rmo.uuid);
-            job.add("message", UsefulUtils.solaceMsgToJson(msg));
-            outMsg.setText(UsefulUtils.prettyPrint(job.build()) + "\n");
-            return outMsg;
-        } else if ("dump".equals(rmo.getParam("format"))) {
-            TextMessage outMsg = f.createMessage(TextMessage.class);
-            outMsg.setText(String.format("%-40s%s%n%n%s",  // 40 spaces, align left, pring msgId, then \n\n message
-                    "RestQ msgId:",rmo.uuid, msg.dump()));  // already has \n at end of dump()
-            return outMsg;
+            job.add("msgId", msgId);
+            job.add("message", UsefulUtils.solaceMsgToJson(msg, fields));
+            return UsefulUtils.prettyPrint(job.build()) + "\n";
+        } else if ("dump".equals(format)) {
+            return String.format("%-40s%s%n%n%s",  // 40 spaces, align left, pring msgId, then \n\n message
+                    "RestQ msgId:",msgId, msg.dump());  // already has \n at end of dump()
         } else {
-            TextMessage outMsg = f.createMessage(TextMessage.class);
             JsonObjectBuilder job = Json.createObjectBuilder();
-            job.add("msgId", rmo.uuid);
-            job.add("message", UsefulUtils.solaceMsgToJson(msg));
-            outMsg.setText(job.build().toString() + "\n");
-            return outMsg;
+            job.add("msgId", msgId);
+            job.add("message", UsefulUtils.solaceMsgToJson(msg, fields));
+            return job.build().toString() + "\n";
+        }
+    }
+
+
+    /** a new message with just the body (and its content type) of an incoming REST request, none of the HTTP stuff */
+    static BytesXMLMessage copyRequestBody(BytesXMLMessage request) {
+        BytesXMLMessage msg;
+        if (request instanceof TextMessage) {
+            TextMessage text = f.createMessage(TextMessage.class);
+            text.setText(((TextMessage)request).getText());
+            msg = text;
+        } else {
+            BytesMessage bytes = f.createMessage(BytesMessage.class);
+            bytes.setData(MessageFileFormat.getPayloadBytes(request));
+            msg = bytes;
         }
+        if (request.getHTTPContentType() != null) msg.setHTTPContentType(request.getHTTPContentType());
+        if (request.getHTTPContentEncoding() != null) msg.setHTTPContentEncoding(request.getHTTPContentEncoding());
+        return msg;
     }
 
+    static final String RESTQ_DELIVERY_COUNT_PROP = "restQ_deliveryCount";  // how many times we've released this message
+    
+    /** 0 if this message has never been released by us before */
+    static int getRestQDeliveryCount(BytesXMLMessage msg) {
+        try {
+            if (msg.getProperties() != null && msg.getProperties().containsKey(RESTQ_DELIVERY_COUNT_PROP)) {
+                return msg.getProperties().getInteger(RESTQ_DELIVERY_COUNT_PROP);
+            }
+        } catch (SDTException e) {  // somebody else put something weird in there
+            logger.warn("Bad {} property", RESTQ_DELIVERY_COUNT_PROP, e);
+        }
+        return 0;
+    }
+    
+    /** a copy of the given (maybe null) properties, with our delivery count updated */
+    static SDTMap withRestQDeliveryCount(SDTMap props, int deliveryCount) {
+        SDTMap copy = f.createMap();
+        try {
+            if (props != null) {
+                for (String key : props.keySet()) {
+                    copy.putObject(key, props.get(key));
+                }
+            }
+            copy.putInteger(RESTQ_DELIVERY_COUNT_PROP, deliveryCount);
+        } catch (SDTException e) {
+            logger.warn("Couldn't copy message properties", e);
+        }
+        return copy;
+    }
 
     static ReturnValue handleJcsmpException(Exception e) {
         if (e instanceof JCSMPErrorResponseException) {
@@ -0,0 +1,32 @@
+package com.solace.aaron.restQ;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A virtual thread per task, where the JDK has them.  This is the Java 8 build of it, which has to look the API up
+ * reflectively; the jar also carries a JDK 21 build (src/main/java21, under META-INF/versions/21) that just calls
+ * it, and a JDK 21+ JVM loads that one instead.  This one is still what runs from the plain classes dir.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+        throw new AssertionError("utility class");
+    }
+
+    /** Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "_", 1).factory()), or null before JDK 21 */
+    static ExecutorService newExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "_", 1L);
+            ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService)newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {  // not there, or preview-only and not enabled
+            return null;
+        }
+    }
+}
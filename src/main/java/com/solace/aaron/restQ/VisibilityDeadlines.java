@@ -0,0 +1,73 @@
+package com.solace.aaron.restQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A flow's visibility timeouts, soonest first, so the sweeper only ever looks at messages that are actually due
+ * rather than everything the flow is holding.  Entries aren't taken out when a message is ACKed or released, or
+ * when its timeout is restarted (that just adds another); they're skipped when they come up instead, by checking
+ * the message is still in the index with that same deadline.  Only the seq is kept, not the message, so a stale
+ * entry doesn't hang on to a payload, and if they pile up (lots of ACKs ahead of long timeouts) they get purged.
+ * Thread-safe, everything is synchronized on this.
+ */
+final class VisibilityDeadlines {
+
+    private static final int MIN_PURGE_SIZE = 64;  // don't bother purging small queues
+
+    private static final class Deadline implements Comparable<Deadline> {
+        final long dueMs;
+        final long seq;
+
+        Deadline(long dueMs, long seq) {
+            this.dueMs = dueMs;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return Long.compare(dueMs, other.dueMs);
+        }
+    }
+
+    private final UnackedIndex index;
+    private final PriorityQueue<Deadline> queue = new PriorityQueue<>();
+
+    VisibilityDeadlines(UnackedIndex index) {
+        this.index = index;
+    }
+
+    /** call after (re)starting the message's visibility timeout; nothing to do if it hasn't got one */
+    synchronized void add(UnackedMessage unacked) {
+        final long dueMs = unacked.getVisibleUntilMs();
+        if (dueMs > 0) queue.add(new Deadline(dueMs, unacked.seq));
+    }
+
+    /** the held message this entry is for, if it's still held and its deadline hasn't moved; else null */
+    private UnackedMessage current(Deadline deadline) {
+        UnackedMessage unacked = index.get(deadline.seq);
+        return unacked != null && unacked.getVisibleUntilMs() == deadline.dueMs ? unacked : null;
+    }
+
+    /** takes out and returns every held message that's due by nowMs */
+    synchronized List<UnackedMessage> pollExpired(long nowMs) {
+        List<UnackedMessage> expired = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().dueMs <= nowMs) {
+            UnackedMessage unacked = current(queue.poll());
+            if (unacked != null) expired.add(unacked);
+        }
+        if (queue.size() > MIN_PURGE_SIZE && queue.size() > 2 * index.size()) {  // mostly stale, worth a pass
+            queue.removeIf(deadline -> current(deadline) == null);
+        }
+        return expired;
+    }
+
+    synchronized void clear() {
+        queue.clear();
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,19 @@
+package com.solace.aaron.restQ;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The JDK 21 build of VirtualThreads, compiled with --release 21 into META-INF/versions/21 of the multi-release jar,
+ * so no reflection and no chance of it quietly falling back to the platform pool.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+        throw new AssertionError("utility class");
+    }
+
+    static ExecutorService newExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "_", 1).factory());
+    }
+}
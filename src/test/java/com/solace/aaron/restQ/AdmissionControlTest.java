@@ -0,0 +1,91 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import java.util.Collections;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    private static final long SEC = 1_000_000_000L;
+
+    private static void set(String key, String value) {
+        Properties system = new Properties();
+        system.setProperty("restq." + key, value);
+        RestQProps.apply(RestQProps.load(new Properties(), Collections.emptyMap(), system));
+    }
+
+    @After public void restore() {
+        RestQProps.reload();
+    }
+
+    @Test public void testBucketRefill() {
+        final long start = System.nanoTime();
+        AdmissionControl.TokenBucket bucket = new AdmissionControl.TokenBucket(2, start);
+        assertEquals(0, bucket.tryTake(start, 10, 2));
+        assertEquals(0, bucket.tryTake(start, 10, 2));
+        assertEquals("empty, and one token takes 100ms at 10/sec", 100, bucket.tryTake(start, 10, 2));
+        assertEquals("half way there", 50, bucket.tryTake(start + SEC / 20, 10, 2));
+        assertEquals(0, bucket.tryTake(start + SEC / 10, 10, 2));
+        assertEquals("doesn't refill past the burst", 0, bucket.tryTake(start + 100 * SEC, 10, 2));
+        assertEquals(0, bucket.tryTake(start + 100 * SEC, 10, 2));
+        assertTrue(bucket.tryTake(start + 100 * SEC, 10, 2) > 0);
+        assertEquals("rate 0 is no limit", 0, bucket.tryTake(start + 100 * SEC, 0, 2));
+    }
+
+    @Test public void testPerFlow() {
+        final int burst = RestQProps.getInt(Props.FLOW_BURST);
+        final int rate = RestQProps.getInt(Props.FLOW_RATE_PER_SEC);
+        AdmissionControl admission = new AdmissionControl();
+        final long now = System.nanoTime();
+        for (int i = 0; i < burst; i++) {
+            assertEquals(0, admission.admit("f1", null, now));
+        }
+        long waitMs = admission.admit("f1", null, now);
+        assertEquals("429, one token's worth", (1000 + rate - 1) / rate, waitMs);
+        assertEquals(0, admission.admit("f2", null, now));  // another flow has its own bucket
+        assertEquals("refilled", 0, admission.admit("f1", null, now + waitMs * 1_000_000));
+    }
+
+    @Test public void testPerUser() {
+        final int burst = RestQProps.getInt(Props.USER_BURST);
+        AdmissionControl admission = new AdmissionControl();
+        final long now = System.nanoTime();
+        for (int i = 0; i < burst; i++) {  // spread over lots of flows, so none of them run out
+            assertEquals(0, admission.admit("f" + i, "alice", now));
+        }
+        assertTrue("alice is out, whichever flow the request is on", admission.admit("another", "alice", now) > 0);
+        assertEquals(0, admission.admit("another", "bob", now));
+        assertEquals("no flow, just a user", 0, admission.admit(null, "bob", now));
+        assertTrue(admission.admit(null, "alice", now) > 0);
+        assertEquals("anonymous and not on a flow, nothing to limit", 0, admission.admit(null, null, now));
+    }
+
+    @Test public void testRetryAfter() {
+        assertEquals("1", AdmissionControl.retryAfterSec(1));
+        assertEquals("1", AdmissionControl.retryAfterSec(1000));
+        assertEquals("2", AdmissionControl.retryAfterSec(1001));
+    }
+
+    @Test public void testConcurrencyCapResizedOnReload() {
+        set("admission.maxConcurrentRequests", "2");
+        AdmissionControl admission = new AdmissionControl();
+        assertTrue(admission.tryEnter());
+        assertTrue(admission.tryEnter());
+        assertFalse("503", admission.tryEnter());
+        set("admission.maxConcurrentRequests", "3");
+        assertTrue("grown", admission.tryEnter());
+        assertFalse(admission.tryEnter());
+        set("admission.maxConcurrentRequests", "1");
+        assertEquals("the ones already in carry on", 3, admission.getInFlight());
+        admission.exit();
+        admission.exit();
+        assertFalse("still one in", admission.tryEnter());
+        admission.exit();
+        assertEquals(0, admission.getInFlight());
+        assertTrue(admission.tryEnter());
+        assertFalse(admission.tryEnter());
+    }
+}
@@ -0,0 +1,181 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.TextMessage;
+import com.solacesystems.jcsmp.XMLMessageProducer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ExportImportTest {
+
+    private static final int SMALL_WINDOW = 1024;  // instead of 64MB, so records straddle it in a small file
+
+    @Rule public TemporaryFolder jobDir = new TemporaryFolder();
+
+    /** text and bytes, small ones and ones bigger than the whole read window */
+    private static List<BytesXMLMessage> messages() throws SDTException {
+        final JCSMPFactory f = JCSMPFactory.onlyInstance();
+        Random random = new Random(7);
+        List<BytesXMLMessage> msgs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            BytesXMLMessage msg;
+            if (i % 2 == 0) {
+                TextMessage text = f.createMessage(TextMessage.class);
+                StringBuilder sb = new StringBuilder("msg " + i + ' ');
+                for (int j = random.nextInt(i % 10 == 0 ? 5000 : 300); j > 0; j--) sb.append((char)('a' + random.nextInt(26)));
+                text.setText(sb.toString());
+                msg = text;
+            } else {
+                BytesMessage bytes = f.createMessage(BytesMessage.class);
+                byte[] data = new byte[random.nextInt(i % 10 == 1 ? 5000 : 300)];
+                random.nextBytes(data);
+                bytes.setData(data);
+                msg = bytes;
+            }
+            msg.setCorrelationId("corr-" + i);
+            SDTMap props = f.createMap();
+            props.putString("index", Integer.toString(i));
+            msg.setProperties(props);
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+
+    /** a browser that pages through msgs and then finds nothing more */
+    private static BrowsableFlow browser(List<BytesXMLMessage> msgs) {
+        final List<UnackedMessage> browsed = new ArrayList<>();
+        for (BytesXMLMessage msg : msgs) browsed.add(new UnackedMessage(browsed.size(), msg, "q1", false));
+        final int[] next = { 0 };
+        return (BrowsableFlow)Proxy.newProxyInstance(BrowsableFlow.class.getClassLoader(), new Class<?>[] { BrowsableFlow.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getQueueName": return "q1";
+                case "getFlowId": return "browser";
+                case "getNextMessages":
+                    int from = next[0];
+                    next[0] = Math.min(browsed.size(), from + (Integer)args[1]);
+                    return new ArrayList<>(browsed.subList(from, next[0]));
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static FlowManager browserManager(AtomicBoolean unbound) {
+        return (FlowManager)Proxy.newProxyInstance(FlowManager.class.getClassLoader(), new Class<?>[] { FlowManager.class }, (proxy, method, args) -> {
+            if (!"unbind".equals(method.getName())) throw new UnsupportedOperationException(method.getName());
+            unbound.set(true);
+            return null;
+        });
+    }
+
+    /** spools everything it's sent straight away */
+    private static XMLMessageProducer producer(List<BytesXMLMessage> sent) {
+        return (XMLMessageProducer)Proxy.newProxyInstance(XMLMessageProducer.class.getClassLoader(), new Class<?>[] { XMLMessageProducer.class }, (proxy, method, args) -> {
+            if (!"send".equals(method.getName())) throw new UnsupportedOperationException(method.getName());
+            BytesXMLMessage msg = (BytesXMLMessage)args[0];
+            sent.add(msg);
+            ((PublishCallback)msg.getCorrelationKey()).onPublished();
+            return null;
+        });
+    }
+
+    private static void assertSameMessage(BytesXMLMessage expected, BytesXMLMessage actual) throws SDTException {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertArrayEquals(MessageFileFormat.getPayloadBytes(expected), MessageFileFormat.getPayloadBytes(actual));
+        assertEquals(expected.getCorrelationId(), actual.getCorrelationId());
+        assertEquals(expected.getProperties().getString("index"), actual.getProperties().getString("index"));
+    }
+
+    private Path export(MessageFileFormat format, List<BytesXMLMessage> msgs) throws IOException {
+        Path file = AdminJob.resolveJobFile(jobDir.getRoot().toPath(), "q1." + format.param);
+        AtomicBoolean unbound = new AtomicBoolean();
+        ExportJob export = new ExportJob("e1", browserManager(unbound), browser(msgs), file, format, Long.MAX_VALUE);
+        export.run();
+        assertEquals(export.toString(), AdminJob.State.DONE, export.getState());
+        assertEquals(msgs.size(), export.toJson().getInt("messages"));
+        assertEquals(Files.size(file), export.toJson().getJsonNumber("bytes").longValue());
+        assertTrue("the browser's given back", unbound.get());
+        return file;
+    }
+
+    private void roundTrip(MessageFileFormat format) throws Exception {
+        List<BytesXMLMessage> msgs = messages();
+        Path file = export(format, msgs);
+        assertTrue("big enough to need a few windows", Files.size(file) > 10 * SMALL_WINDOW);
+        List<BytesXMLMessage> imported = new ArrayList<>();
+        ImportJob importJob = new ImportJob("i1", "q2", file, format, producer(imported), 4, SMALL_WINDOW);
+        importJob.run();
+        assertEquals(importJob.toString(), AdminJob.State.DONE, importJob.getState());
+        assertEquals(msgs.size(), importJob.toJson().getInt("messages"));
+        assertEquals(Files.size(file), importJob.toJson().getJsonNumber("bytes").longValue());
+        assertEquals(msgs.size(), imported.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            assertSameMessage(msgs.get(i), imported.get(i));
+        }
+    }
+
+    @Test public void testRoundTripNdjson() throws Exception {
+        roundTrip(MessageFileFormat.NDJSON);
+    }
+
+    @Test public void testRoundTripLengthPrefixed() throws Exception {
+        roundTrip(MessageFileFormat.LENGTH_PREFIXED);
+    }
+
+    @Test public void testRecordStraddlingTheWindow() throws Exception {
+        for (MessageFileFormat format : MessageFileFormat.values()) {
+            List<BytesXMLMessage> msgs = messages();
+            Path file = export(format, msgs);
+            boolean straddled = false;
+            try (MessageFileReader reader = new MessageFileReader(file, format, SMALL_WINDOW)) {
+                for (BytesXMLMessage expected : msgs) {
+                    long start = reader.getPosition();
+                    BytesXMLMessage actual = reader.next();
+                    assertNotNull(format + " ended early", actual);
+                    if (start / SMALL_WINDOW != (reader.getPosition() - 1) / SMALL_WINDOW) straddled = true;
+                    assertSameMessage(expected, actual);
+                }
+                assertNull(reader.next());
+                assertEquals(reader.getSize(), reader.getPosition());
+            }
+            assertTrue(format + " had a record cross a window boundary", straddled);
+        }
+    }
+
+    @Test public void testTruncated() throws Exception {
+        Path file = export(MessageFileFormat.LENGTH_PREFIXED, messages().subList(0, 2));
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 1));
+        try (MessageFileReader reader = new MessageFileReader(file, MessageFileFormat.LENGTH_PREFIXED, SMALL_WINDOW)) {
+            assertNotNull(reader.next());
+            reader.next();
+            fail("the last record's short");
+        } catch (EOFException e) { }
+    }
+
+    @Test public void testJobFileStaysInJobDir() {
+        Path dir = jobDir.getRoot().toPath();
+        assertEquals(dir.toAbsolutePath().normalize().resolve("q1.lp"), AdminJob.resolveJobFile(dir, "q1.lp"));
+        for (String bad : new String[] { "../q1.lp", "sub/q1.lp", "/tmp/q1.lp", "" }) {
+            try {
+                AdminJob.resolveJobFile(dir, bad);
+                fail(bad);
+            } catch (IllegalArgumentException e) { }
+        }
+    }
+}
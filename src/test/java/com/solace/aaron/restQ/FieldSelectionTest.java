@@ -0,0 +1,96 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.TextMessage;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FieldSelectionTest {
+
+    private static TextMessage message() throws SDTException {
+        TextMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+        msg.setText("{\"hello\":\"world\"}");
+        msg.setCorrelationId("c1");
+        SDTMap props = JCSMPFactory.onlyInstance().createMap();
+        props.putString("orderId", "42");
+        props.putString("region", "eu");
+        props.putString("other", "x");
+        msg.setProperties(props);
+        return msg;
+    }
+
+    private static JsonObject json(String text) {
+        return Json.createReader(new StringReader(text)).readObject();
+    }
+
+    @Test public void testParse() {
+        assertNull("no param, everything", FieldSelection.parse(null));
+        FieldSelection fields = FieldSelection.parse("payload, correlationId");
+        assertTrue(fields.has("payload"));
+        assertTrue(fields.has("correlationId"));
+        assertFalse(fields.has("destination"));
+        assertFalse(fields.has("properties"));
+        assertNull(fields.getPropertyNames());
+    }
+
+    @Test public void testParseProperties() {
+        FieldSelection fields = FieldSelection.parse("properties.orderId,properties.region");
+        assertTrue(fields.has("properties"));
+        assertEquals(Arrays.asList("orderId", "region"), Arrays.asList(fields.getPropertyNames().toArray()));
+        fields = FieldSelection.parse("properties.orderId,properties");
+        assertTrue(fields.has("properties"));
+        assertNull("properties on its own means all of them", fields.getPropertyNames());
+    }
+
+    @Test public void testParseRejects() {
+        for (String bad : new String[] { "", "bogus", "payload,bogus", "properties.", "Payload" }) {
+            try {
+                FieldSelection.parse(bad);
+                fail("'" + bad + "'");
+            } catch (IllegalArgumentException e) { }
+        }
+    }
+
+    @Test public void testProjection() throws SDTException {
+        JsonObject json = (JsonObject)UsefulUtils.solaceMsgToJson(message(), FieldSelection.parse("correlationId,properties.orderId,payload"));
+        assertEquals(new HashSet<>(Arrays.asList("correlationId", "properties", "payload")), json.keySet());
+        assertEquals("c1", json.getString("correlationId"));
+        assertEquals(new HashSet<>(Arrays.asList("orderId")), json.getJsonObject("properties").keySet());
+        assertEquals("world", json.getJsonObject("payload").getString("hello"));
+        json = (JsonObject)UsefulUtils.solaceMsgToJson(message(), FieldSelection.parse("messageClass,properties.missing"));
+        assertEquals("TextMessage", json.getString("messageClass"));
+        assertTrue("asked for but not there", json.getJsonObject("properties").isEmpty());
+    }
+
+    @Test public void testRenderCacheSkippedWhenProjected() throws SDTException {
+        UnackedMessage unacked = new UnackedMessage(1, message(), "q1", true);
+        BytesXMLMessage projected = UsefulUtils.formatResponseMessage(unacked, "json", FieldSelection.parse("correlationId"));
+        JsonObject reply = json(((TextMessage)projected).getText());
+        assertEquals(unacked.msgId, reply.getString("msgId"));
+        assertEquals(new HashSet<>(Arrays.asList("correlationId")), reply.getJsonObject("message").keySet());
+        assertNull("projected, so not cached", UsefulUtils.renderCache.get(unacked, "json"));
+        try {  // dump, since the whole-message JSON wants a destination, which only a received message has
+            BytesXMLMessage whole = UsefulUtils.formatResponseMessage(unacked, "dump", null);
+            String cached = UsefulUtils.renderCache.get(unacked, "dump");
+            assertNotNull("not projected, so cached", cached);
+            assertEquals(cached, ((TextMessage)whole).getText());
+            assertSame("and served from the cache", cached, ((TextMessage)UsefulUtils.formatResponseMessage(unacked, "dump", null)).getText());
+        } finally {
+            UsefulUtils.renderCache.remove(unacked);
+        }
+    }
+
+    @Test public void testRenderCacheSkippedWhenUntracked() throws SDTException {
+        UnackedMessage autoAcked = new UnackedMessage(2, message(), "q1", false);
+        UsefulUtils.formatResponseMessage(autoAcked, "dump", null);
+        assertNull("nobody can ask for it again", UsefulUtils.renderCache.get(autoAcked, "dump"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.solace.aaron.restQ;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlowRegistryTest {
+
+    /** just enough of a Flow for the registry: its id and whether it's closed */
+    private static Flow flow(String flowId, AtomicBoolean closed) {
+        return (Flow)Proxy.newProxyInstance(Flow.class.getClassLoader(), new Class<?>[] { Flow.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getFlowId": return flowId;
+                case "isClosed": return closed.get();
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /** registers a new flow and closes it, then churns through every other slot so the next flow lands in its slot */
+    private static String closedAndReused(FlowRegistry registry) {
+        AtomicBoolean closed = new AtomicBoolean();
+        String oldId = registry.newFlowId();
+        registry.register(flow(oldId, closed));
+        closed.set(true);
+        for (int i = 1; i < FlowRegistry.MAX_FLOWS; i++) {
+            registry.register(flow(registry.newFlowId(), new AtomicBoolean()));  // open, so they stay put
+        }
+        String newId = registry.newFlowId();
+        assertEquals("same slot", FlowRegistry.parseSlot(oldId), FlowRegistry.parseSlot(newId));
+        assertNotEquals(oldId, newId);
+        registry.register(flow(newId, new AtomicBoolean()));
+        return oldId;
+    }
+
+    @Test public void testLookup() {
+        FlowRegistry registry = new FlowRegistry();
+        String flowId = registry.newFlowId();
+        assertNull("reserved, not built yet", registry.lookup(flowId));
+        Flow flow = flow(flowId, new AtomicBoolean());
+        registry.register(flow);
+        assertSame(flow, registry.lookup(flowId));
+        String wrongTag = flowId.substring(0, flowId.lastIndexOf('-') + 1) + "00000000";
+        assertNull(registry.lookup(wrongTag));
+        assertNull(registry.lookup("nope"));
+        assertNull(registry.lookup(null));
+        assertEquals(1, registry.getFlows().size());
+    }
+
+    @Test public void testRelease() {
+        FlowRegistry registry = new FlowRegistry();
+        String flowId = registry.newFlowId();
+        registry.release(flowId);
+        assertNull(registry.lookup(flowId));
+        assertFalse(registry.wasClosed(flowId));
+        assertTrue(registry.getFlows().isEmpty());
+    }
+
+    @Test public void testClosedBeforeReuse() {
+        FlowRegistry registry = new FlowRegistry();
+        AtomicBoolean closed = new AtomicBoolean();
+        String flowId = registry.newFlowId();
+        registry.register(flow(flowId, closed));
+        assertFalse(registry.wasClosed(flowId));
+        closed.set(true);
+        assertNotNull("still there until its slot's wanted", registry.lookup(flowId));
+        assertTrue(registry.wasClosed(flowId));
+    }
+
+    @Test public void testClosedAfterReuse() {
+        FlowRegistry registry = new FlowRegistry();
+        String oldId = closedAndReused(registry);
+        assertNull("slot belongs to somebody else now", registry.lookup(oldId));
+        assertTrue("but it's still known to have closed", registry.wasClosed(oldId));
+    }
+
+    @Test public void testNeverOurs() {
+        FlowRegistry registry = new FlowRegistry();
+        assertFalse(registry.wasClosed(null));
+        assertFalse(registry.wasClosed("nope"));
+        String flowId = registry.newFlowId();
+        assertFalse("right slot, wrong tag", registry.wasClosed(flowId.substring(0, flowId.lastIndexOf('-') + 1) + "00000000"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFull() {
+        FlowRegistry registry = new FlowRegistry();
+        for (int i = 0; i <= FlowRegistry.MAX_FLOWS; i++) {
+            registry.register(flow(registry.newFlowId(), new AtomicBoolean()));
+        }
+    }
+}
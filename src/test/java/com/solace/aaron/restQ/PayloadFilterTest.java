@@ -0,0 +1,63 @@
+package com.solace.aaron.restQ;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PayloadFilterTest {
+
+    private static final String ORDER = "{\"status\":\"NEW\",\"order\":{\"total\":150.5,\"lines\":3},"
+            + "\"items\":[{\"sku\":\"A1\"},{\"sku\":\"B2\",\"qty\":null}],\"rush\":false,\"note\":null}";
+
+    private static boolean matches(String filter, String json) {
+        return PayloadFilter.compile(filter).matches(json);
+    }
+
+    @Test public void testComparisons() {
+        assertTrue(matches("$.status == 'NEW'", ORDER));
+        assertFalse(matches("$.status != \"NEW\"", ORDER));
+        assertTrue(matches("$.order.total >= 100", ORDER));
+        assertTrue(matches("$.order.total < 150.50001", ORDER));
+        assertFalse(matches("$.order.lines > 3", ORDER));
+        assertTrue(matches("$.items[1].sku == 'B2'", ORDER));
+        assertTrue(matches("$['order'][\"lines\"] == 3", ORDER));
+        assertTrue(matches("$.rush == false", ORDER));
+        assertTrue(matches("$.note == null", ORDER));
+        assertFalse(matches("$.status == 3", ORDER));  // different types never equal
+        assertTrue(matches("$.status != 3", ORDER));
+    }
+
+    @Test public void testExistsAndMissing() {
+        assertTrue(matches("$.items", ORDER));
+        assertTrue(matches("$.items[0]", ORDER));
+        assertFalse(matches("$.items[2]", ORDER));
+        assertFalse(matches("$.note", ORDER));  // null isn't there
+        assertFalse(matches("$.items[1].qty", ORDER));
+        assertFalse(matches("$.missing == 'x'", ORDER));
+        assertTrue(matches("$.missing != 'x'", ORDER));
+        assertTrue(matches("!$.missing", ORDER));
+    }
+
+    @Test public void testLogic() {
+        assertTrue(matches("$.status == 'NEW' && ($.order.total > 1000 || $.items[0].sku == 'A1')", ORDER));
+        assertFalse(matches("$.status == 'NEW' && !($.order.total > 1000 || $.items[0].sku == 'A1')", ORDER));
+        assertTrue(matches("$.status == 'OLD' || $.status == 'NEW'", ORDER));
+        assertTrue(matches("$.status == 'NEW' && $.status == 'NEW'", ORDER));  // same path twice
+        assertTrue(matches("$ == 5", "5"));
+    }
+
+    @Test public void testNotJson() {
+        assertFalse(matches("$.status", "not json"));
+        assertFalse(matches("!$.status", "{\"status\":"));  // truncated
+    }
+
+    @Test public void testBadExpressions() {
+        for (String bad : new String[] { "", "status == 'x'", "$.a ==", "$.a == 'x", "($.a", "$.a == x", "$.a[x]", "$. == 1", "$.a $.b" }) {
+            try {
+                PayloadFilter.compile(bad);
+                fail("should have been rejected: " + bad);
+            } catch (IllegalArgumentException e) {
+                // good
+            }
+        }
+    }
+}
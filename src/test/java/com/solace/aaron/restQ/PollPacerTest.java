@@ -0,0 +1,71 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PollPacerTest {
+
+    // the defaults: receive wait 500ms, at least 50ms; backoff 250ms to 10s
+    private final int receiveMs = RestQProps.getInt(Props.FLOW_RECEIVE_MESSAGE_TIMEOUT_MS);
+    private final int minReceiveMs = RestQProps.getInt(Props.POLL_MIN_RECEIVE_WAIT_MS);
+    private final int minBackoffMs = RestQProps.getInt(Props.POLL_MIN_BACKOFF_MS);
+    private final int maxBackoffMs = RestQProps.getInt(Props.POLL_MAX_BACKOFF_MS);
+
+    @Test public void testMeanGap() {
+        PollPacer pacer = new PollPacer();
+        pacer.onMessage(1000);
+        assertEquals("one message isn't a gap", -1, pacer.getMeanGapMs(), 0);
+        pacer.onMessage(1100);
+        assertEquals("the first gap is the average", 100, pacer.getMeanGapMs(), 0.001);
+        pacer.onMessage(1300);
+        assertEquals(0.8 * 100 + 0.2 * 200, pacer.getMeanGapMs(), 0.001);
+        pacer.onMessage(1300);
+        assertEquals(0.8 * 120, pacer.getMeanGapMs(), 0.001);
+    }
+
+    @Test public void testReceiveWait() {
+        PollPacer pacer = new PollPacer();
+        assertEquals("nothing known, the full wait", receiveMs, pacer.getReceiveWaitMs(0));
+        pacer.onMessage(1000);
+        pacer.onMessage(1100);
+        assertEquals("busy, twice the gap", 201, pacer.getReceiveWaitMs(1150));
+        assertEquals("not heard from in 4 gaps, the gap's out of date", receiveMs, pacer.getReceiveWaitMs(1501));
+        pacer.onEmpty();
+        assertEquals("halved", receiveMs / 2, pacer.getReceiveWaitMs(2000));
+        pacer.onEmpty();
+        assertEquals(receiveMs / 4, pacer.getReceiveWaitMs(2000));
+        for (int i = 0; i < 40; i++) pacer.onEmpty();
+        assertEquals("but not below the minimum", minReceiveMs, pacer.getReceiveWaitMs(2000));
+        pacer.onMessage(2000);
+        assertEquals(0, pacer.getEmptyStreak());
+        assertEquals("a message resets it", receiveMs, pacer.getReceiveWaitMs(100_000));
+    }
+
+    @Test public void testEmptyBackoff() {
+        PollPacer pacer = new PollPacer();
+        assertEquals("not empty, poll straight away", 0, pacer.getNextPollMs(0));
+        long expected = Math.min(minBackoffMs, maxBackoffMs);
+        for (int i = 1; i <= 60; i++) {
+            pacer.onEmpty();
+            assertEquals("after " + i + " empty", expected, pacer.getNextPollMs(0));
+            expected = Math.min(expected * 2, maxBackoffMs);  // doubling, up to the cap
+        }
+        assertEquals(maxBackoffMs, pacer.getNextPollMs(0));
+        pacer.onMessage(0);
+        assertEquals(0, pacer.getNextPollMs(0));
+    }
+
+    @Test public void testBackoffCappedByRecentGap() {
+        PollPacer pacer = new PollPacer();
+        pacer.onMessage(0);
+        pacer.onMessage(2 * minBackoffMs);  // a message every couple of backoffs
+        for (int i = 0; i < 10; i++) pacer.onEmpty();
+        assertEquals("only briefly empty, come back about when the next one's due", 2 * minBackoffMs, pacer.getNextPollMs(3 * minBackoffMs));
+        assertEquals("gone quiet, full backoff", maxBackoffMs, pacer.getNextPollMs(100 * minBackoffMs));
+        pacer.onMessage(100 * minBackoffMs);
+        pacer.onMessage(100 * minBackoffMs + 1);  // very busy: still never told to come back sooner than the minimum
+        pacer.onEmpty();
+        assertEquals(minBackoffMs, pacer.getNextPollMs(100 * minBackoffMs + 2));
+    }
+}
@@ -0,0 +1,106 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.TextMessage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReplyCacheTest {
+
+    private static TextMessage reply(String text) {
+        TextMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+        msg.setText(text);
+        return msg;
+    }
+
+    @Test public void testGetIsACopy() {
+        ReplyCache cache = new ReplyCache(10, 60);
+        TextMessage original = reply("hello");
+        cache.put("k", original);
+        TextMessage again = (TextMessage)cache.get("k");
+        assertNotSame(original, again);
+        assertEquals("hello", again.getText());
+        assertNull(cache.get("nope"));
+    }
+
+    @Test public void testLruEviction() {
+        ReplyCache cache = new ReplyCache(3, 60);
+        cache.put("a", reply("a"));
+        cache.put("b", reply("b"));
+        cache.put("c", reply("c"));
+        assertNotNull(cache.get("a"));  // now b is the least recently used
+        cache.put("d", reply("d"));
+        assertEquals(3, cache.size());
+        assertNull("evicted", cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test public void testExpiry() {
+        ReplyCache cache = new ReplyCache(10, 0);  // expired as soon as it's in
+        cache.put("k", reply("x"));
+        assertNull(cache.get("k"));
+        assertEquals("expired entries are dropped when found", 0, cache.size());
+    }
+
+    @Test public void testTwinWaitsForOriginal() throws Exception {
+        ReplyCache cache = new ReplyCache(10, 60);
+        Object original = new Object(), retry = new Object();
+        assertNull("first one gets the key", cache.claim("k", original, 0));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            Future<BytesXMLMessage> twin = pool.submit(() -> {
+                started.countDown();
+                return cache.claim("k", retry, 10_000);
+            });
+            started.await();
+            Thread.sleep(50);
+            assertFalse("still waiting on the original", twin.isDone());
+            cache.done("k", retry);  // not its key to give back
+            Thread.sleep(50);
+            assertFalse(twin.isDone());
+            cache.put("k", reply("once"));
+            cache.done("k", original);
+            assertEquals("once", ((TextMessage)twin.get(5, TimeUnit.SECONDS)).getText());
+            assertEquals(0, cache.inFlightCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test public void testTwinTakesOverFromFailure() throws Exception {
+        ReplyCache cache = new ReplyCache(10, 60);
+        Object original = new Object(), retry = new Object();
+        assertNull(cache.claim("k", original, 0));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<BytesXMLMessage> twin = pool.submit(() -> cache.claim("k", retry, 10_000));
+            cache.done("k", original);  // without a put(), like an error reply
+            assertNull("its turn now", twin.get(5, TimeUnit.SECONDS));
+            assertEquals(1, cache.inFlightCount());
+            cache.done("k", retry);
+            assertEquals(0, cache.inFlightCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test public void testTwinTimesOut() throws Exception {
+        ReplyCache cache = new ReplyCache(10, 60);
+        assertNull(cache.claim("k", "original", 0));
+        try {
+            cache.claim("k", "retry", 20);
+            fail("original never finished");
+        } catch (TimeoutException e) { }
+        assertNull("other keys aren't held up", cache.claim("j", "other", 0));
+    }
+}
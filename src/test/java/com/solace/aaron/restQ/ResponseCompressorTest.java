@@ -0,0 +1,129 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.ResponseCompressor.Encoding;
+import com.solace.aaron.restQ.RestQProps.Props;
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.TextMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResponseCompressorTest {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\n  \"msgId\" : \"").append(Integer.toHexString(i)).append("-1a2b\",\n  \"payload\" : \"hello\"\n}");
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static BytesXMLMessage request(String acceptEncoding) throws SDTException {
+        TextMessage request = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+        if (acceptEncoding != null) {
+            SDTMap props = JCSMPFactory.onlyInstance().createMap();
+            props.putString(ResponseCompressor.ACCEPT_ENCODING_HEADER, acceptEncoding);
+            request.setProperties(props);
+        }
+        return request;
+    }
+
+    private static TextMessage reply(byte[] body) throws SDTException {
+        TextMessage reply = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+        reply.setText(new String(body, StandardCharsets.UTF_8));
+        reply.setHTTPContentType("application/json");
+        SDTMap props = JCSMPFactory.onlyInstance().createMap();
+        props.putString("JMS_Solace_HTTP_status_code", "200");
+        reply.setProperties(props);
+        return reply;
+    }
+
+    @Test public void testGzipRoundTrip() throws IOException {
+        for (byte[] data : new byte[][] { new byte[0], "x".getBytes(StandardCharsets.UTF_8), json(5000) }) {
+            for (int i = 0; i < 3; i++) {  // pooled deflaters get reused, make sure they come back clean
+                byte[] gz = ResponseCompressor.compress(data, Encoding.GZIP);
+                assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(gz))));
+            }
+        }
+    }
+
+    @Test public void testDeflateRoundTrip() throws IOException {
+        for (byte[] data : new byte[][] { new byte[0], json(5000) }) {
+            for (int i = 0; i < 3; i++) {
+                byte[] zlib = ResponseCompressor.compress(data, Encoding.DEFLATE);
+                assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(zlib))));
+            }
+        }
+    }
+
+    @Test public void testNegotiate() {
+        assertNull(ResponseCompressor.negotiate(null));
+        assertNull(ResponseCompressor.negotiate(""));
+        assertNull(ResponseCompressor.negotiate("identity, br"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("gzip"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("x-gzip"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("GZip"));
+        assertEquals(Encoding.DEFLATE, ResponseCompressor.negotiate("Deflate"));
+        assertEquals("gzip wins", Encoding.GZIP, ResponseCompressor.negotiate("deflate, gzip;q=0.5"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("*"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("br, *;q=0.1"));
+        assertNull("refused", ResponseCompressor.negotiate("gzip;q=0"));
+        assertNull(ResponseCompressor.negotiate("gzip; q=0.0, deflate;q=0"));
+        assertEquals(Encoding.DEFLATE, ResponseCompressor.negotiate("gzip;q=0, deflate"));
+        assertEquals(Encoding.DEFLATE, ResponseCompressor.negotiate("X-GZIP;Q=0, *;q=0, DEFLATE;q=1"));
+        assertNull("garbage q", ResponseCompressor.negotiate("gzip;q=lots"));
+        assertEquals("* doesn't cover a coding that's listed", Encoding.DEFLATE, ResponseCompressor.negotiate("gzip;q=0, *"));
+        assertEquals(Encoding.DEFLATE, ResponseCompressor.negotiate("*, x-gzip;q=0"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0, deflate;q=0, *"));
+        assertNull(ResponseCompressor.negotiate("*;q=0, gzip;q=0"));
+        assertEquals("a refused * still leaves what's listed", Encoding.GZIP, ResponseCompressor.negotiate("gzip, *;q=0"));
+        assertEquals(Encoding.GZIP, ResponseCompressor.negotiate("deflate;q=0, *"));
+    }
+
+    @Test public void testCompressReply() throws IOException, SDTException {
+        byte[] body = json(500);
+        assertTrue(body.length >= RestQProps.getInt(Props.COMPRESS_MIN_BYTES));
+        BytesXMLMessage out = ResponseCompressor.compressReply(request("gzip, deflate"), reply(body));
+        assertTrue(out instanceof BytesMessage);
+        assertEquals("gzip", out.getHTTPContentEncoding());
+        assertEquals("application/json", out.getHTTPContentType());
+        assertEquals("200", out.getProperties().getString("JMS_Solace_HTTP_status_code"));
+        assertEquals("Accept-Encoding", out.getProperties().getString(ResponseCompressor.VARY_HEADER));
+        byte[] data = ((BytesMessage)out).getData();
+        assertTrue(data.length < body.length);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(data))));
+    }
+
+    @Test public void testReplyLeftAlone() throws SDTException {
+        TextMessage big = reply(json(500));
+        assertSame("not asked for", big, ResponseCompressor.compressReply(request(null), big));
+        assertSame("refused", big, ResponseCompressor.compressReply(request("gzip;q=0"), big));
+        TextMessage small = reply("{\"ok\":true}".getBytes(StandardCharsets.UTF_8));
+        assertSame("below the threshold", small, ResponseCompressor.compressReply(request("gzip"), small));
+        byte[] noise = new byte[RestQProps.getInt(Props.COMPRESS_MIN_BYTES) * 4];
+        new Random(42).nextBytes(noise);
+        BytesMessage random = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+        random.setData(noise);
+        assertSame("doesn't shrink", random, ResponseCompressor.compressReply(request("gzip"), random));
+    }
+}
@@ -0,0 +1,76 @@
+package com.solace.aaron.restQ;
+
+import com.solace.aaron.restQ.RestQProps.Props;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RestQPropsTest {
+
+    private static final Map<String,String> NO_ENV = Collections.emptyMap();
+
+    private static Properties props(String... keysAndValues) {
+        Properties props = new Properties();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            props.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return props;
+    }
+
+    @After public void restore() {
+        RestQProps.reload();  // whatever the real file/env/system properties say, which is the defaults here
+    }
+
+    @Test public void testPrecedence() {
+        Properties file = props("flow.receiveTimeoutMs", "1", "log.dumpEvery", "2", "admission.flowBurst", "3");
+        Map<String,String> env = new HashMap<>();
+        env.put("RESTQ_LOG_DUMP_EVERY", "20");
+        env.put("RESTQ_FLOW_BURST", "30");
+        Properties system = props("restq.admission.flowBurst", "300", "restq.bogus", "ignored");
+        RestQProps loaded = RestQProps.load(file, env, system);
+        assertEquals("default", Props.FLOW_RATE_PER_SEC.defaultValue, loaded.getProperty("admission.flowRatePerSec"));
+        assertEquals("file beats default", "1", loaded.getProperty("flow.receiveTimeoutMs"));
+        assertEquals("env beats file", "20", loaded.getProperty("log.dumpEvery"));
+        assertEquals("-D beats env", "300", loaded.getProperty("admission.flowBurst"));
+        assertNull(loaded.getProperty("bogus"));
+    }
+
+    @Test public void testBadValueKeepsOld() {
+        RestQProps.apply(RestQProps.load(props("log.dumpEvery", "7", "threads.shutdownClose", "3"), NO_ENV, new Properties()));
+        assertEquals(7, RestQProps.getInt(Props.LOG_DUMP_EVERY));
+        RestQProps.apply(RestQProps.load(props("log.dumpEvery", "lots", "threads.shutdownClose", "-1"), NO_ENV, new Properties()));
+        assertEquals(7, RestQProps.getInt(Props.LOG_DUMP_EVERY));
+        assertEquals("7", RestQProps.getCurrent().getProperty("log.dumpEvery"));
+        assertEquals("negative", 3, RestQProps.getInt(Props.SHUTDOWN_CLOSE_THREADS));
+        RestQProps.apply(RestQProps.load(new Properties(), NO_ENV, props("restq.threads.virtual", "maybe")));
+        assertEquals(Boolean.parseBoolean(Props.REQUEST_VIRTUAL_THREADS.defaultValue), RestQProps.getBoolean(Props.REQUEST_VIRTUAL_THREADS));
+    }
+
+    @Test public void testOutOfRangeKeepsOld() {
+        RestQProps.apply(RestQProps.load(props("flow.transportWindowSize", "255", "flow.inactivityTimeoutSec", "1"), NO_ENV, new Properties()));
+        assertEquals("the very top", 255, RestQProps.getInt(Props.FLOW_TRANSPORT_WINDOW_SIZE));
+        assertEquals("the very bottom", 1, RestQProps.getInt(Props.FLOW_INACTIVITY_TIMEOUT_SEC));
+        RestQProps.apply(RestQProps.load(props("flow.transportWindowSize", "256", "flow.inactivityTimeoutSec", "0"), NO_ENV, new Properties()));
+        assertEquals("too big", 255, RestQProps.getInt(Props.FLOW_TRANSPORT_WINDOW_SIZE));
+        assertEquals("too small", 1, RestQProps.getInt(Props.FLOW_INACTIVITY_TIMEOUT_SEC));
+        assertEquals("255", RestQProps.getCurrent().getProperty("flow.transportWindowSize"));
+        RestQProps.apply(RestQProps.load(props("admission.flowRatePerSec", "0"), NO_ENV, new Properties()));
+        assertEquals("0 is fine for this one", 0, RestQProps.getInt(Props.FLOW_RATE_PER_SEC));
+        RestQProps.apply(RestQProps.load(props("admission.flowRatePerSec", "-5"), NO_ENV, new Properties()));
+        assertEquals(0, RestQProps.getInt(Props.FLOW_RATE_PER_SEC));
+        assertTrue("the real config was fine", RestQProps.getStartupErrors().isEmpty());
+    }
+
+    @Test public void testNonReloadableIgnoredOnReload() {
+        final int before = RestQProps.getInt(Props.REQUEST_PLATFORM_POOL_SIZE);
+        RestQProps.apply(RestQProps.load(props("threads.platformPoolSize", String.valueOf(before + 1), "log.dumpEvery", "9"),
+                NO_ENV, new Properties()));
+        assertEquals("needs a restart", before, RestQProps.getInt(Props.REQUEST_PLATFORM_POOL_SIZE));
+        assertEquals(String.valueOf(before), RestQProps.getCurrent().getProperty("threads.platformPoolSize"));
+        assertEquals("but the reloadable one in the same load took", 9, RestQProps.getInt(Props.LOG_DUMP_EVERY));
+    }
+}
@@ -0,0 +1,80 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.TextMessage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UnackedIndexTest {
+
+    private final BytesXMLMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+
+    @Test public void testAddGetRemove() {
+        UnackedIndex index = new UnackedIndex();
+        UnackedMessage a = index.add(msg, "q1");
+        UnackedMessage b = index.add(msg, "q1");
+        assertEquals(2, index.size());
+        assertSame(a, index.get(a.msgId));
+        assertNull("wrong tag", index.get(a.seq + "-0"));
+        assertNull("garbage", index.get("not-a-msgId"));
+        assertSame(a, index.remove(a.msgId));
+        assertNull(index.remove(a.msgId));
+        assertSame(b, index.get(b.msgId));
+        assertEquals(1, index.size());
+    }
+
+    @Test public void testGrowAndShrinkWithHoles() {
+        UnackedIndex index = new UnackedIndex();
+        List<UnackedMessage> all = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            all.add(index.add(msg, "q1"));
+        }
+        for (int i = 1; i < all.size(); i += 2) {  // ACK every other one
+            assertNotNull(index.remove(all.get(i).msgId));
+        }
+        assertEquals(50_000, index.size());
+        for (int i = 0; i < all.size(); i += 2) {
+            assertSame(all.get(i), index.get(all.get(i).msgId));
+        }
+        for (int i = 0; i < all.size(); i += 2) {
+            index.remove(all.get(i).msgId);
+        }
+        assertTrue(index.isEmpty());
+        UnackedMessage next = index.add(msg, "q1");  // still works after it's shrunk back down
+        assertSame(next, index.get(next.msgId));
+    }
+
+    @Test public void testRemoveUpTo() {
+        UnackedIndex index = new UnackedIndex();
+        List<UnackedMessage> all = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            all.add(index.add(msg, "q1"));
+        }
+        index.remove(all.get(2).msgId);
+        List<UnackedMessage> removed = index.removeUpTo(all.get(5).seq);
+        assertEquals(5, removed.size());  // 0,1,3,4,5
+        assertSame(all.get(0), removed.get(0));
+        assertSame(all.get(5), removed.get(4));
+        assertEquals(4, index.size());
+        assertSame(all.get(6), index.list(0, 1).get(0));  // oldest
+    }
+
+    @Test public void testPaging() {
+        UnackedIndex index = new UnackedIndex();
+        List<UnackedMessage> all = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            all.add(index.add(msg, "q1"));
+        }
+        index.skip(msg, "q1");  // auto-ACKed, never held
+        index.remove(all.get(10).msgId);
+        List<UnackedMessage> page1 = index.list(0, 10);
+        assertEquals(10, page1.size());
+        List<UnackedMessage> page2 = index.list(page1.get(9).seq, 10);
+        assertSame(all.get(11), page2.get(0));  // skipped over the ACKed one
+        List<UnackedMessage> page3 = index.list(page2.get(9).seq, 10);
+        assertEquals(4, page3.size());
+    }
+}
@@ -0,0 +1,65 @@
+package com.solace.aaron.restQ;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.TextMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VisibilityDeadlinesTest {
+
+    private final BytesXMLMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+
+    private static UnackedMessage held(UnackedIndex index, VisibilityDeadlines deadlines, int seconds) {
+        UnackedMessage unacked = index.add(JCSMPFactory.onlyInstance().createMessage(TextMessage.class), "q1");
+        unacked.setVisibilityTimeout(seconds);
+        deadlines.add(unacked);
+        return unacked;
+    }
+
+    @Test public void testSoonestFirstAndOnlyWhenDue() {
+        UnackedIndex index = new UnackedIndex();
+        VisibilityDeadlines deadlines = new VisibilityDeadlines(index);
+        UnackedMessage late = held(index, deadlines, 60);
+        UnackedMessage early = held(index, deadlines, 10);
+        held(index, deadlines, 0);  // no timeout, never due
+        assertEquals(2, deadlines.size());
+        final long now = System.currentTimeMillis();
+        assertTrue(deadlines.pollExpired(now).isEmpty());
+        assertEquals(Arrays.asList(early), deadlines.pollExpired(now + 30_000));
+        assertEquals(Arrays.asList(late), deadlines.pollExpired(now + 120_000));
+        assertEquals(0, deadlines.size());
+    }
+
+    @Test public void testSkipsAckedAndRestarted() {
+        UnackedIndex index = new UnackedIndex();
+        VisibilityDeadlines deadlines = new VisibilityDeadlines(index);
+        UnackedMessage acked = held(index, deadlines, 10);
+        UnackedMessage restarted = held(index, deadlines, 10);
+        UnackedMessage expiring = held(index, deadlines, 10);
+        index.remove(acked.msgId);
+        restarted.setVisibilityTimeout(100);
+        deadlines.add(restarted);
+        final long now = System.currentTimeMillis();
+        assertEquals(Arrays.asList(expiring), deadlines.pollExpired(now + 30_000));
+        assertEquals(Arrays.asList(restarted), deadlines.pollExpired(now + 200_000));
+    }
+
+    @Test public void testPurgesStaleEntries() {
+        UnackedIndex index = new UnackedIndex();
+        VisibilityDeadlines deadlines = new VisibilityDeadlines(index);
+        List<UnackedMessage> all = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            all.add(held(index, deadlines, 3600));
+        }
+        for (UnackedMessage unacked : all.subList(0, 990)) {
+            index.remove(unacked.msgId);
+        }
+        index.add(msg, "q1");  // keep the index from being empty regardless
+        assertTrue(deadlines.pollExpired(System.currentTimeMillis()).isEmpty());
+        assertEquals("only the ones still held are left", 10, deadlines.size());
+    }
+}